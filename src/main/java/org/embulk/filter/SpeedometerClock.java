@@ -0,0 +1,21 @@
+package org.embulk.filter;
+
+import java.util.concurrent.locks.LockSupport;
+
+// A monotonic time source to calculate speed. Tests can replace it.
+// NOTE: This is not a wall clock, so it is not affected by NTP adjustments
+// and the value must not be compared between processes.
+interface SpeedometerClock {
+    SpeedometerClock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+
+    default long millis() {
+        return nanoTime() / 1000000L;
+    }
+
+    // Tests can advance the time instead of sleeping.
+    default void parkNanos(long nanos) {
+        LockSupport.parkNanos(nanos);
+    }
+}
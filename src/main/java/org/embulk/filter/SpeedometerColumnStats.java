@@ -0,0 +1,93 @@
+package org.embulk.filter;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+
+// Sizes for each column. Values are kept in arrays indexed by Column.getIndex()
+// so that the per-column path has no map lookup and no boxing.
+class SpeedometerColumnStats implements SpeedometerMergeableStats<SpeedometerColumnStats> {
+    private final String[] names;
+    private final long[] bytes;
+    private final long[] nonNullCounts;
+    private final long[] nullCounts;
+    private final long[] maxSizes;
+    private final boolean eachInterval;
+
+    static SpeedometerColumnStats of(Schema schema, boolean eachInterval) {
+        String[] names = new String[schema.getColumnCount()];
+        for (Column column : schema.getColumns()) {
+            names[column.getIndex()] = column.getName();
+        }
+        return new SpeedometerColumnStats(names, eachInterval);
+    }
+
+    SpeedometerColumnStats(String[] names, boolean eachInterval) {
+        this.names = names;
+        this.bytes = new long[names.length];
+        this.nonNullCounts = new long[names.length];
+        this.nullCounts = new long[names.length];
+        this.maxSizes = new long[names.length];
+        this.eachInterval = eachInterval;
+    }
+
+    void add(int index, long size) {
+        bytes[index] += size;
+        nonNullCounts[index]++;
+        if (maxSizes[index] < size) {
+            maxSizes[index] = size;
+        }
+    }
+
+    void addNull(int index) {
+        nullCounts[index]++;
+    }
+
+    // Stats for a different schema are not merged.
+    @Override
+    public void merge(SpeedometerColumnStats other) {
+        if (other.names.length != names.length) {
+            return;
+        }
+        for (int i = 0; i < names.length; i++) {
+            bytes[i] += other.bytes[i];
+            nonNullCounts[i] += other.nonNullCounts[i];
+            nullCounts[i] += other.nullCounts[i];
+            maxSizes[i] = Math.max(maxSizes[i], other.maxSizes[i]);
+        }
+    }
+
+    @Override
+    public SpeedometerColumnStats copy() {
+        SpeedometerColumnStats stats = new SpeedometerColumnStats(names, eachInterval);
+        stats.merge(this);
+        return stats;
+    }
+
+    int getColumnCount() {
+        return names.length;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    long getBytes(int index) {
+        return bytes[index];
+    }
+
+    long getNonNullCount(int index) {
+        return nonNullCounts[index];
+    }
+
+    long getNullCount(int index) {
+        return nullCounts[index];
+    }
+
+    long getMaxSize(int index) {
+        return maxSizes[index];
+    }
+
+    boolean isEachInterval() {
+        return eachInterval;
+    }
+}
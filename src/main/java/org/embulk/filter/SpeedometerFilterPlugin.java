@@ -1,19 +1,27 @@
 package org.embulk.filter;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
+import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
 import org.embulk.util.config.ConfigMapper;
 import org.embulk.util.config.ConfigMapperFactory;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.util.config.Task;
 import org.embulk.util.config.TaskMapper;
 import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Column;
 import org.embulk.spi.ColumnVisitor;
@@ -24,6 +32,7 @@ import org.embulk.spi.PageOutput;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
 import org.embulk.spi.json.JsonValue;
+import org.msgpack.value.ImmutableValue;
 import org.embulk.spi.type.TimestampType;
 import org.embulk.spi.Exec;
 import org.embulk.util.timestamp.TimestampFormatter;
@@ -41,6 +50,16 @@ public class SpeedometerFilterPlugin
         @Min(0)
         public long getSpeedLimit();
 
+        @Config("records_speed_limit")
+        @ConfigDefault("0")
+        @Min(0)
+        public long getRecordsSpeedLimit();
+
+        @Config("burst_size")
+        @ConfigDefault("0")
+        @Min(0)
+        public long getBurstSize();
+
         @Config("max_sleep_millisec")
         @ConfigDefault("1000")
         @Min(0)
@@ -67,6 +86,89 @@ public class SpeedometerFilterPlugin
         @ConfigDefault("null")
         public Optional<String> getLabel();
 
+        @Config("pass_through")
+        @ConfigDefault("false")
+        public boolean getPassThrough();
+
+        @Config("charset")
+        @ConfigDefault("null")
+        public Optional<String> getCharset();
+
+        @Config("measure")
+        @ConfigDefault("\"text\"")
+        public String getMeasure();
+
+        @Config("sample_rate")
+        @ConfigDefault("1")
+        @Min(1)
+        public int getSampleRate();
+
+        @Config("batch_records")
+        @ConfigDefault("1")
+        @Min(0)
+        public int getBatchRecords();
+
+        @Config("column_stats")
+        @ConfigDefault("false")
+        public boolean getColumnStats();
+
+        @Config("column_stats_each_interval")
+        @ConfigDefault("false")
+        public boolean getColumnStatsEachInterval();
+
+        @Config("latency_stats")
+        @ConfigDefault("false")
+        public boolean getLatencyStats();
+
+        @Config("stage_stats")
+        @ConfigDefault("false")
+        public boolean getStageStats();
+
+        @Config("task_stats")
+        @ConfigDefault("false")
+        public boolean getTaskStats();
+
+        @Config("skew_warning_factor")
+        @ConfigDefault("0")
+        @Min(0)
+        public double getSkewWarningFactor();
+
+        @Config("jmx")
+        @ConfigDefault("false")
+        public boolean getJmx();
+
+        @Config("target_latency_ms")
+        @ConfigDefault("0")
+        @Min(0)
+        public int getTargetLatencyMs();
+
+        @Config("metrics_port")
+        @ConfigDefault("0")
+        @Min(0)
+        @Max(65535)
+        public int getMetricsPort();
+
+        @Config("metrics_bind_address")
+        @ConfigDefault("null")
+        public Optional<String> getMetricsBindAddress();
+
+        @Config("metrics_file")
+        @ConfigDefault("null")
+        public Optional<String> getMetricsFile();
+
+        @Config("shared_limit_file")
+        @ConfigDefault("null")
+        public Optional<String> getSharedLimitFile();
+
+        @Config("shared_limit_weight")
+        @ConfigDefault("1")
+        @Min(1)
+        public int getSharedLimitWeight();
+
+        // Set by transaction to find the aggregator of the run. This is not a config.
+        String getAggregatorId();
+        void setAggregatorId(String aggregatorId);
+
         // copy from org.embulk.spi.time.TimestampParser.Task
         @Config("default_timezone")
         @ConfigDefault("\"UTC\"")
@@ -97,6 +199,9 @@ public class SpeedometerFilterPlugin
         java.util.Optional<String> getDate();
     }
 
+    static final String MEASURE_TEXT = "text";
+    static final String MEASURE_PHYSICAL = "physical";
+
     private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
 
     @Override
@@ -104,7 +209,40 @@ public class SpeedometerFilterPlugin
             FilterPlugin.Control control)
     {
         Schema outputSchema = inputSchema;
-        control.run(getTask(config).toTaskSource(), outputSchema);
+        PluginTask task = getTask(config);
+        if (!MEASURE_TEXT.equals(task.getMeasure()) && !MEASURE_PHYSICAL.equals(task.getMeasure())) {
+            throw new ConfigException("measure must be \"text\" or \"physical\": " + task.getMeasure());
+        }
+        if (task.getTargetLatencyMs() > 0 && task.getSpeedLimit() <= 0) {
+            throw new ConfigException("target_latency_ms needs speed_limit as the initial limit. records_speed_limit is not adapted.");
+        }
+        if (task.getCharset().isPresent()) {
+            Charset charset;
+            try {
+                charset = Charset.forName(task.getCharset().get());
+            } catch (IllegalArgumentException e) {
+                throw new ConfigException("Unsupported charset: " + task.getCharset().get(), e);
+            }
+            // NOTE: A decode-only charset has no encoder to calculate byte sizes.
+            if (!charset.canEncode()) {
+                throw new ConfigException("charset can't encode: " + task.getCharset().get());
+            }
+        }
+        if (task.getMetricsBindAddress().isPresent()) {
+            try {
+                InetAddress.getByName(task.getMetricsBindAddress().get());
+            } catch (UnknownHostException e) {
+                throw new ConfigException("Unknown metrics_bind_address: " + task.getMetricsBindAddress().get(), e);
+            }
+        }
+        String aggregatorId = SpeedometerSpeedAggregator.newAggregatorId();
+        task.setAggregatorId(aggregatorId);
+        SpeedometerSpeedAggregator.addTransaction(aggregatorId);
+        try {
+            control.run(task.toTaskSource(), outputSchema);
+        } finally {
+            SpeedometerSpeedAggregator.removeInstance(aggregatorId);
+        }
     }
 
     @Override
@@ -112,7 +250,13 @@ public class SpeedometerFilterPlugin
             Schema outputSchema, PageOutput output)
     {
         final PluginTask task = getTask(taskSource);
-        return new SpeedControlPageOutput(task, inputSchema, output);
+        SpeedometerSpeedAggregator aggregator = SpeedometerSpeedAggregator.getInstance(task);
+        try {
+            return new SpeedControlPageOutput(task, aggregator, inputSchema, output);
+        } catch (RuntimeException | Error e) {
+            aggregator.releaseIfIdle(); // The controller never stops, so the aggregator is released here.
+            throw e;
+        }
     }
 
     PluginTask getTask(ConfigSource config) {
@@ -128,23 +272,77 @@ public class SpeedometerFilterPlugin
     static class SpeedControlPageOutput implements PageOutput {
         private final SpeedometerSpeedController controller;
         private final Schema schema;
-        private final TimestampFormatter[] timestampFormatters;
+        private final SpeedometerTimestampLength[] timestampLengths;
+        private final SpeedometerStringLength stringLength;
+        private final SpeedometerColumnStats columnStats; // null if column_stats is disabled.
         private final PageReader pageReader;
         private final BufferAllocator allocator;
         private final int delimiterLength;
         private final int recordPaddingSize;
-        private final PageBuilder pageBuilder;
-
-        SpeedControlPageOutput(PluginTask task, Schema schema, PageOutput pageOutput) {
-            this.controller = new SpeedometerSpeedController(task, SpeedometerSpeedAggregator.getInstance(task));
+        private final int batchRecords;
+        private final PageOutput pageOutput; // Timed when latency_stats or stage_stats is enabled.
+        private final PageBuilder pageBuilder; // null when pass_through is enabled.
+        private final SpeedometerLatencyHistogram upstreamWaits; // null if latency_stats is disabled.
+        private final SpeedometerStageTimes stageTimes; // null if stage_stats is disabled.
+        private final boolean timed; // true if latency_stats, stage_stats or target_latency_ms is enabled.
+        private final boolean physical; // Pages are measured without reading columns.
+        private final SpeedometerSampleStats sampleStats; // null if all records are measured.
+        private final ColumnVisitor copyOnlyVisitor; // Copies skipped records. null when pass_through is enabled.
+        private int recordsToNextSample;
+        private final SpeedometerClock clock;
+        private long lastAddEndNanos;
+        private final ColumnVisitorImpl visitor;
+
+        SpeedControlPageOutput(PluginTask task, SpeedometerSpeedAggregator aggregator, Schema schema, PageOutput pageOutput) {
+            this.controller = new SpeedometerSpeedController(task, aggregator);
             this.schema = schema;
             this.allocator = getBufferAllocator();
-            this.delimiterLength = task.getDelimiter().length();
+            this.stringLength = SpeedometerStringLength.of(task.getCharset());
+            this.delimiterLength = stringLength.lengthOfConstant(task.getDelimiter());
             this.recordPaddingSize = task.getRecordPaddingSize();
+            this.batchRecords = task.getBatchRecords();
             this.pageReader = Exec.getPageReader(schema);
-            this.timestampFormatters = newTimestampColumnFormatters(task, schema, task.getColumnOptions());
-            this.pageBuilder = Exec.getPageBuilder(allocator, schema, pageOutput);
-            this.controller.start(System.currentTimeMillis());
+            this.timestampLengths = newTimestampColumnLengths(task, schema, task.getColumnOptions());
+            this.columnStats = task.getColumnStats() ? SpeedometerColumnStats.of(schema, task.getColumnStatsEachInterval()) : null;
+            this.clock = controller.getClock();
+            this.stageTimes = task.getStageStats() ? new SpeedometerStageTimes() : null;
+            this.timed = task.getLatencyStats() || stageTimes != null || task.getTargetLatencyMs() > 0;
+            if (timed) {
+                SpeedometerLatencyHistogram downstreamBlocks = task.getLatencyStats() ? new SpeedometerLatencyHistogram() : null;
+                this.upstreamWaits = task.getLatencyStats() ? new SpeedometerLatencyHistogram() : null;
+                this.pageOutput = new TimedPageOutput(pageOutput, downstreamBlocks, stageTimes,
+                        task.getTargetLatencyMs() > 0 ? controller : null, clock);
+                if (upstreamWaits != null) {
+                    this.controller.setLatencyHistograms(upstreamWaits, downstreamBlocks);
+                }
+            } else {
+                this.upstreamWaits = null;
+                this.pageOutput = pageOutput;
+            }
+            this.physical = MEASURE_PHYSICAL.equals(task.getMeasure());
+            if (task.getPassThrough() || physical) {
+                this.pageBuilder = null;
+                this.visitor = new ColumnVisitorImpl();
+            } else {
+                this.pageBuilder = Exec.getPageBuilder(allocator, schema, this.pageOutput);
+                this.visitor = new CopyColumnVisitorImpl(pageBuilder);
+            }
+            if (task.getSampleRate() > 1 && !physical) {
+                this.sampleStats = new SpeedometerSampleStats(task.getSampleRate());
+                this.copyOnlyVisitor = pageBuilder != null ? new CopyOnlyColumnVisitorImpl(pageReader, pageBuilder) : null;
+                // A random offset avoids measuring only the same kind of records in periodic data.
+                this.recordsToNextSample = 1 + ThreadLocalRandom.current().nextInt(task.getSampleRate());
+            } else {
+                this.sampleStats = null;
+                this.copyOnlyVisitor = null;
+            }
+            this.controller.setSampleStats(sampleStats);
+            this.controller.setColumnStats(columnStats);
+            this.controller.setStageTimes(stageTimes);
+            this.controller.start();
+            if (timed) {
+                lastAddEndNanos = clock.nanoTime();
+            }
         }
 
         BufferAllocator getBufferAllocator() {
@@ -153,62 +351,194 @@ public class SpeedometerFilterPlugin
 
         @Override
         public void add(Page page) {
-            ColumnVisitorImpl visitor = new ColumnVisitorImpl(pageBuilder);
-            pageReader.setPage(page);
+            long startNanos = 0;
+            long startDownstreamNanos = 0;
+            long startThrottleNanos = 0;
+            if (timed) {
+                startNanos = clock.nanoTime();
+                if (upstreamWaits != null) {
+                    upstreamWaits.record(startNanos - lastAddEndNanos);
+                }
+                if (stageTimes != null) {
+                    stageTimes.addUpstreamWait(startNanos - lastAddEndNanos);
+                    startDownstreamNanos = stageTimes.getDownstreamNanos();
+                    startThrottleNanos = controller.getThrottleNanos();
+                }
+            }
+
+            if (physical) {
+                controller.checkSpeedLimitNow(SpeedometerPageSize.of(page), PageReader.getRecordCount(page));
+                pageOutput.add(page);
+            } else {
+                addRecords(page);
+            }
+
+            if (timed) {
+                lastAddEndNanos = clock.nanoTime();
+                if (stageTimes != null) {
+                    // Time in the next plugin and throttle sleeps are not the overhead of this plugin.
+                    long throttleNanos = controller.getThrottleNanos() - startThrottleNanos;
+                    long downstreamNanos = stageTimes.getDownstreamNanos() - startDownstreamNanos;
+                    stageTimes.addThrottle(throttleNanos);
+                    stageTimes.addMeasure(lastAddEndNanos - startNanos - downstreamNanos - throttleNanos);
+                }
+            }
+        }
+
+        private void addRecords(Page page) {
+            if (pageBuilder == null) {
+                // The reader releases its previous page in setPage(), but the page
+                // is owned by the downstream output after it is forwarded.
+                pageReader.setPage(new BorrowedPage(page));
+            } else {
+                pageReader.setPage(page);
+            }
+
             while (pageReader.nextRecord()) {
-                visitor.speedMonitorStartRecord();
-                schema.visitColumns(visitor);
-                visitor.speedMonitorEndRecord();
-                pageBuilder.addRecord();
+                if (isSampled()) {
+                    schema.visitColumns(visitor);
+                    visitor.speedMonitorEndRecord();
+                } else {
+                    if (copyOnlyVisitor != null) {
+                        schema.visitColumns(copyOnlyVisitor);
+                    }
+                    visitor.speedMonitorEndSkippedRecord();
+                }
+                if (pageBuilder != null) {
+                    pageBuilder.addRecord();
+                }
+            }
+            visitor.speedMonitorEndPage();
+
+            if (pageBuilder == null) {
+                pageOutput.add(page);
             }
         }
 
+        // NOTE: The last page is flushed before stop, so that its time in the
+        // next plugin is merged into latency_stats and stage_stats.
         @Override
         public void finish() {
-            controller.stop();
-            pageBuilder.finish();
+            try {
+                if (pageBuilder != null) {
+                    pageBuilder.finish();
+                } else {
+                    pageOutput.finish();
+                }
+            } finally {
+                controller.stop();
+            }
         }
 
         @Override
         public void close() {
-            pageBuilder.close();
+            if (pageBuilder != null) {
+                pageBuilder.close();
+            } else {
+                pageOutput.close();
+            }
+        }
+
+        // One in sample_rate records is measured. The first record is always
+        // measured so that skipped records have an estimate.
+        private boolean isSampled() {
+            if (sampleStats == null) {
+                return true;
+            }
+            if (--recordsToNextSample <= 0 || sampleStats.getSampledCount() == 0) {
+                if (recordsToNextSample <= 0) {
+                    recordsToNextSample = sampleStats.getSampleRate();
+                }
+                return true;
+            }
+            return false;
         }
 
-        private static TimestampFormatter[] newTimestampColumnFormatters(
+        private static SpeedometerTimestampLength[] newTimestampColumnLengths(
             PluginTask task, Schema schema,
             Map<String, ? extends TimestampColumnOption> columnOptions) {
-            TimestampFormatter[] formatters = new TimestampFormatter[schema.getColumnCount()];
+            SpeedometerTimestampLength[] lengths = new SpeedometerTimestampLength[schema.getColumnCount()];
             int i = 0;
             for (Column column : schema.getColumns()) {
                 if (column.getType() instanceof TimestampType) {
                     final TimestampColumnOption columnOption = columnOptions.get(column.getName());
-
-                    formatters[i] = TimestampFormatter
-                        .builder(columnOption.getFormat().orElse(task.getDefaultTimestampFormat()), true)
-                        .setDefaultZoneFromString(columnOption.getTimeZoneId().orElse(task.getDefaultTimeZoneId()))
-                        .setDefaultDateFromString(columnOption.getDate().orElse(task.getDefaultDate()))
+                    final Optional<String> format = columnOption != null ? columnOption.getFormat() : Optional.empty();
+                    final Optional<String> timeZoneId = columnOption != null ? columnOption.getTimeZoneId() : Optional.empty();
+                    final Optional<String> date = columnOption != null ? columnOption.getDate() : Optional.empty();
+                    final String pattern = format.orElse(task.getDefaultTimestampFormat());
+                    final String zoneId = timeZoneId.orElse(task.getDefaultTimeZoneId());
+
+                    final TimestampFormatter formatter = TimestampFormatter
+                        .builder(pattern, true)
+                        .setDefaultZoneFromString(zoneId)
+                        .setDefaultDateFromString(date.orElse(task.getDefaultDate()))
                         .build();
+                    lengths[i] = SpeedometerTimestampLength.of(pattern, zoneId, formatter);
                 }
                 i++;
             }
-            return formatters;
+            return lengths;
         }
 
-        class ColumnVisitorImpl implements ColumnVisitor {
-            private final PageBuilder pageBuilder;
-            private long startRecordTime;
+        // Measure time to add a page to the next plugin. A PageBuilder adds pages
+        // through this when it is flushed.
+        static class TimedPageOutput implements PageOutput {
+            private final PageOutput delegate;
+            private final SpeedometerLatencyHistogram downstreamBlocks; // null if latency_stats is disabled.
+            private final SpeedometerStageTimes stageTimes; // null if stage_stats is disabled.
+            private final SpeedometerSpeedController controller; // null if target_latency_ms is not set.
+            private final SpeedometerClock clock;
+
+            TimedPageOutput(PageOutput delegate, SpeedometerLatencyHistogram downstreamBlocks, SpeedometerStageTimes stageTimes,
+                    SpeedometerSpeedController controller, SpeedometerClock clock) {
+                this.delegate = delegate;
+                this.downstreamBlocks = downstreamBlocks;
+                this.stageTimes = stageTimes;
+                this.controller = controller;
+                this.clock = clock;
+            }
 
-            ColumnVisitorImpl(PageBuilder pageBuilder) {
-                this.pageBuilder = pageBuilder;
+            @Override
+            public void add(Page page) {
+                long startNanos = clock.nanoTime();
+                delegate.add(page);
+                long nanos = clock.nanoTime() - startNanos;
+                if (downstreamBlocks != null) {
+                    downstreamBlocks.record(nanos);
+                }
+                if (stageTimes != null) {
+                    stageTimes.addDownstream(nanos);
+                }
+                if (controller != null) {
+                    controller.addDownstreamTime(nanos);
+                }
+            }
+
+            @Override
+            public void finish() {
+                delegate.finish();
             }
 
+            @Override
+            public void close() {
+                delegate.close();
+            }
+        }
+
+        // Measure columns without copying them. This is used as is for pass_through.
+        class ColumnVisitorImpl implements ColumnVisitor {
+            // Sizes are summed here and passed to the controller once per batch.
+            private long batchBytes;
+            private long batchRecordCount;
+            private long recordBytes;
+            private double estimatedBytes; // Fraction of estimated sizes which is not added yet.
+
             @Override
             public void booleanColumn(Column column) {
                 if (pageReader.isNull(column)) {
                     speedMonitor(column);
-                    pageBuilder.setNull(column);
                 } else {
-                    pageBuilder.setBoolean(column, speedMonitor(column, pageReader.getBoolean(column)));
+                    speedMonitor(column, pageReader.getBoolean(column));
                 }
             }
 
@@ -216,9 +546,8 @@ public class SpeedometerFilterPlugin
             public void longColumn(Column column) {
                 if (pageReader.isNull(column)) {
                     speedMonitor(column);
-                    pageBuilder.setNull(column);
                 } else {
-                    pageBuilder.setLong(column, speedMonitor(column, pageReader.getLong(column)));
+                    speedMonitor(column, pageReader.getLong(column));
                 }
             }
 
@@ -226,9 +555,8 @@ public class SpeedometerFilterPlugin
             public void doubleColumn(Column column) {
                 if (pageReader.isNull(column)) {
                     speedMonitor(column);
-                    pageBuilder.setNull(column);
                 } else {
-                    pageBuilder.setDouble(column, speedMonitor(column, pageReader.getDouble(column)));
+                    speedMonitor(column, pageReader.getDouble(column));
                 }
             }
 
@@ -236,9 +564,8 @@ public class SpeedometerFilterPlugin
             public void stringColumn(Column column) {
                 if (pageReader.isNull(column)) {
                     speedMonitor(column);
-                    pageBuilder.setNull(column);
                 } else {
-                    pageBuilder.setString(column, speedMonitor(column, pageReader.getString(column)));
+                    speedMonitor(column, pageReader.getString(column));
                 }
             }
 
@@ -246,9 +573,8 @@ public class SpeedometerFilterPlugin
             public void timestampColumn(Column column) {
                 if (pageReader.isNull(column)) {
                     speedMonitor(column);
-                    pageBuilder.setNull(column);
                 } else {
-                    pageBuilder.setTimestamp(column, speedMonitor(column, pageReader.getTimestampInstant(column)));
+                    speedMonitor(column, pageReader.getTimestampInstant(column));
                 }
             }
 
@@ -256,69 +582,292 @@ public class SpeedometerFilterPlugin
             public void jsonColumn(Column column) {
                 if (pageReader.isNull(column)) {
                     speedMonitor(column);
-                    pageBuilder.setNull(column);
                 } else {
-                    pageBuilder.setJson(column, speedMonitor(column, pageReader.getJsonValue(column)));
+                    speedMonitor(column, pageReader.getJsonValue(column));
+                }
+            }
+
+            void speedMonitorEndRecord() {
+                recordBytes += recordPaddingSize;
+                if (sampleStats != null) {
+                    sampleStats.add(recordBytes);
+                }
+                batchBytes += recordBytes;
+                recordBytes = 0;
+                endRecord();
+            }
+
+            // A skipped record is estimated by the mean size of sampled records.
+            void speedMonitorEndSkippedRecord() {
+                sampleStats.addSkipped();
+                estimatedBytes += sampleStats.getMean();
+                long bytes = (long) estimatedBytes;
+                batchBytes += bytes;
+                estimatedBytes -= bytes;
+                endRecord();
+            }
+
+            private void endRecord() {
+                batchRecordCount++;
+                if (batchRecords > 0 && batchRecordCount >= batchRecords) {
+                    flushBatch();
                 }
             }
 
-            private void speedMonitorStartRecord() {
-                startRecordTime = System.currentTimeMillis();
+            void speedMonitorEndPage() {
+                flushBatch();
             }
 
-            private void speedMonitorEndRecord() {
-                controller.checkSpeedLimit(startRecordTime, recordPaddingSize, true);
+            private void flushBatch() {
+                if (batchBytes > 0 || batchRecordCount > 0) {
+                    controller.checkSpeedLimitNow(batchBytes, batchRecordCount);
+                    batchBytes = 0;
+                    batchRecordCount = 0;
+                }
             }
 
             // For null column
-            private void speedMonitor(Column column) {
+            void speedMonitor(Column column) {
                 speedMonitorForDelimiter(column);
+                if (columnStats != null) {
+                    columnStats.addNull(column.getIndex());
+                }
             }
 
-            private boolean speedMonitor(Column column, boolean b) {
-                speedMonitorForDelimiter(column);
-                controller.checkSpeedLimit(startRecordTime, b ? TRUE_LENGTH : FALSE_LENGTH);
+            boolean speedMonitor(Column column, boolean b) {
+                speedMonitorForColumn(column, b ? TRUE_LENGTH : FALSE_LENGTH);
                 return b;
             }
 
-            private long speedMonitor(Column column, long l) {
-                speedMonitorForDelimiter(column);
-                controller.checkSpeedLimit(startRecordTime, SpeedometerUtil.toDigitsTextLength(l));
+            long speedMonitor(Column column, long l) {
+                speedMonitorForColumn(column, SpeedometerUtil.toDigitsTextLength(l));
                 return l;
             }
 
-            private double speedMonitor(Column column, double d) {
-                speedMonitorForDelimiter(column);
-                controller.checkSpeedLimit(startRecordTime, String.valueOf(d).length());
+            double speedMonitor(Column column, double d) {
+                speedMonitorForColumn(column, SpeedometerUtil.toDoubleTextLength(d));
                 return d;
             }
 
-            private String speedMonitor(Column column, String s) {
-                speedMonitorForDelimiter(column);
-                controller.checkSpeedLimit(startRecordTime, s.length());
+            String speedMonitor(Column column, String s) {
+                speedMonitorForColumn(column, stringLength.length(s));
                 return s;
             }
 
-            private Instant speedMonitor(Column column, Instant t) {
-                speedMonitorForDelimiter(column);
-                TimestampFormatter formatter = timestampFormatters[column.getIndex()];
-                controller.checkSpeedLimit(startRecordTime, formatter.format(t).length());
+            Instant speedMonitor(Column column, Instant t) {
+                speedMonitorForColumn(column, timestampLengths[column.getIndex()].length(t));
                 return t;
             }
 
-            private JsonValue speedMonitor(Column column, JsonValue v) {
-                speedMonitorForDelimiter(column);
-                // NOTE: This may not be good for performance. But, I have no other idea.
-                String s = v.toJson();
-                controller.checkSpeedLimit(startRecordTime, s != null ? s.length() : 0);
+            JsonValue speedMonitor(Column column, JsonValue v) {
+                speedMonitorForColumn(column, SpeedometerUtil.toJsonTextLength(v));
                 return v;
             }
 
+            private void speedMonitorForColumn(Column column, long size) {
+                speedMonitorForDelimiter(column);
+                recordBytes += size;
+                if (columnStats != null) {
+                    columnStats.add(column.getIndex(), size);
+                }
+            }
+
             private void speedMonitorForDelimiter(Column column) {
                 if (column.getIndex() > 0) {
-                    controller.checkSpeedLimit(startRecordTime, delimiterLength);
+                    recordBytes += delimiterLength;
                 }
             }
         }
+
+        // Measure columns and copy them to the PageBuilder.
+        class CopyColumnVisitorImpl extends ColumnVisitorImpl {
+            private final PageBuilder pageBuilder;
+
+            CopyColumnVisitorImpl(PageBuilder pageBuilder) {
+                this.pageBuilder = pageBuilder;
+            }
+
+            @Override
+            public void booleanColumn(Column column) {
+                if (pageReader.isNull(column)) {
+                    speedMonitor(column);
+                    pageBuilder.setNull(column);
+                } else {
+                    pageBuilder.setBoolean(column, speedMonitor(column, pageReader.getBoolean(column)));
+                }
+            }
+
+            @Override
+            public void longColumn(Column column) {
+                if (pageReader.isNull(column)) {
+                    speedMonitor(column);
+                    pageBuilder.setNull(column);
+                } else {
+                    pageBuilder.setLong(column, speedMonitor(column, pageReader.getLong(column)));
+                }
+            }
+
+            @Override
+            public void doubleColumn(Column column) {
+                if (pageReader.isNull(column)) {
+                    speedMonitor(column);
+                    pageBuilder.setNull(column);
+                } else {
+                    pageBuilder.setDouble(column, speedMonitor(column, pageReader.getDouble(column)));
+                }
+            }
+
+            @Override
+            public void stringColumn(Column column) {
+                if (pageReader.isNull(column)) {
+                    speedMonitor(column);
+                    pageBuilder.setNull(column);
+                } else {
+                    pageBuilder.setString(column, speedMonitor(column, pageReader.getString(column)));
+                }
+            }
+
+            @Override
+            public void timestampColumn(Column column) {
+                if (pageReader.isNull(column)) {
+                    speedMonitor(column);
+                    pageBuilder.setNull(column);
+                } else {
+                    pageBuilder.setTimestamp(column, speedMonitor(column, pageReader.getTimestampInstant(column)));
+                }
+            }
+
+            @Override
+            public void jsonColumn(Column column) {
+                if (pageReader.isNull(column)) {
+                    speedMonitor(column);
+                    pageBuilder.setNull(column);
+                } else {
+                    pageBuilder.setJson(column, speedMonitor(column, pageReader.getJsonValue(column)));
+                }
+            }
+        }
+    }
+
+    // Copy columns to the PageBuilder without measuring them. This is used
+    // for records which are skipped by sample_rate.
+    static class CopyOnlyColumnVisitorImpl implements ColumnVisitor {
+        private final PageReader pageReader;
+        private final PageBuilder pageBuilder;
+
+        CopyOnlyColumnVisitorImpl(PageReader pageReader, PageBuilder pageBuilder) {
+            this.pageReader = pageReader;
+            this.pageBuilder = pageBuilder;
+        }
+
+        @Override
+        public void booleanColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setBoolean(column, pageReader.getBoolean(column));
+            }
+        }
+
+        @Override
+        public void longColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setLong(column, pageReader.getLong(column));
+            }
+        }
+
+        @Override
+        public void doubleColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setDouble(column, pageReader.getDouble(column));
+            }
+        }
+
+        @Override
+        public void stringColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setString(column, pageReader.getString(column));
+            }
+        }
+
+        @Override
+        public void timestampColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setTimestamp(column, pageReader.getTimestampInstant(column));
+            }
+        }
+
+        @Override
+        public void jsonColumn(Column column) {
+            if (pageReader.isNull(column)) {
+                pageBuilder.setNull(column);
+            } else {
+                pageBuilder.setJson(column, pageReader.getJsonValue(column));
+            }
+        }
+    }
+
+    // A read-only view of a page for pass_through. release() does nothing
+    // because the original page is handed over to the downstream output.
+    @SuppressWarnings("deprecation")
+    static class BorrowedPage extends Page {
+        private final Page page;
+
+        BorrowedPage(Page page) {
+            this.page = page;
+        }
+
+        @Override
+        public Page setStringReferences(List<String> values) {
+            throw new UnsupportedOperationException("BorrowedPage is read-only.");
+        }
+
+        @Override
+        public Page setValueReferences(List<ImmutableValue> values) {
+            throw new UnsupportedOperationException("BorrowedPage is read-only.");
+        }
+
+        @Override
+        public List<String> getStringReferences() {
+            return page.getStringReferences();
+        }
+
+        @Override
+        public List<ImmutableValue> getValueReferences() {
+            return page.getValueReferences();
+        }
+
+        @Override
+        public String getStringReference(int index) {
+            return page.getStringReference(index);
+        }
+
+        @Override
+        public ImmutableValue getValueReference(int index) {
+            return page.getValueReference(index);
+        }
+
+        @Override
+        public JsonValue getJsonValueReference(int index) {
+            return page.getJsonValueReference(index);
+        }
+
+        @Override
+        public void release() {
+            // Do nothing. The downstream output releases the original page.
+        }
+
+        @Override
+        public Buffer buffer() {
+            return page.buffer();
+        }
     }
 }
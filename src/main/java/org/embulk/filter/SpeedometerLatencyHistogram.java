@@ -0,0 +1,81 @@
+package org.embulk.filter;
+
+// Histogram of latencies in nanoseconds with fixed memory. Each power of two
+// range is divided into 8 buckets like HdrHistogram, so a percentile value is
+// less than 12.5% larger than the recorded value.
+class SpeedometerLatencyHistogram implements SpeedometerMergeableStats<SpeedometerLatencyHistogram> {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * (64 - SUB_BUCKET_BITS);
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long maxValue;
+
+    void record(long nanos) {
+        long value = nanos > 0 ? nanos : 0;
+        counts[toIndex(value)]++;
+        totalCount++;
+        if (maxValue < value) {
+            maxValue = value;
+        }
+    }
+
+    @Override
+    public void merge(SpeedometerLatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+    }
+
+    @Override
+    public SpeedometerLatencyHistogram copy() {
+        SpeedometerLatencyHistogram histogram = new SpeedometerLatencyHistogram();
+        histogram.merge(this);
+        return histogram;
+    }
+
+    // Returns the upper bound of a bucket which has the percentile. It is not over the max value.
+    long getPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(totalCount * percentile / 100.0));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts[i];
+            if (count >= rank) {
+                return Math.min(toUpperBound(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    long getMaxValue() {
+        return maxValue;
+    }
+
+    static int toIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    static long toUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,37 @@
+package org.embulk.filter;
+
+import java.util.Map;
+
+// Live metrics and controls for JMX clients like JConsole.
+// NOTE: An MXBean interface must be public.
+public interface SpeedometerMXBean {
+    String getLabel();
+
+    int getActiveControllerCount();
+
+    long getTotalBytes();
+
+    long getTotalRecords();
+
+    long getBytesPerSec();
+
+    long getRecordsPerSec();
+
+    // Keys are sequence numbers of tasks, because thread names may be the same.
+    Map<Integer, Long> getTaskBytesPerSec();
+
+    Map<Integer, Long> getTaskRecordsPerSec();
+
+    // Thread names of tasks by the same keys.
+    Map<Integer, String> getTaskNames();
+
+    long getSpeedLimit();
+
+    long getRecordsSpeedLimit();
+
+    // These are writable attributes. 0 means no limit. A new limit is applied
+    // to running and later tasks.
+    void setSpeedLimit(long speedLimit);
+
+    void setRecordsSpeedLimit(long recordsSpeedLimit);
+}
@@ -0,0 +1,146 @@
+package org.embulk.filter;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Values are read from volatile fields of controllers without any lock,
+// so reading them doesn't block tasks.
+class SpeedometerMXBeanImpl implements SpeedometerMXBean {
+    private static final String DOMAIN = "org.embulk.filter.speedometer";
+
+    private final SpeedometerSpeedAggregator aggregator;
+    private final String label;
+    private final ObjectName objectName;
+
+    SpeedometerMXBeanImpl(SpeedometerSpeedAggregator aggregator, String label, String id) {
+        this.aggregator = aggregator;
+        this.label = label;
+        this.objectName = toObjectName(label, id);
+    }
+
+    void register() throws JMException {
+        getMBeanServer().registerMBean(this, objectName);
+    }
+
+    void unregister() throws JMException {
+        MBeanServer server = getMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public String getLabel() {
+        return label != null ? label : "";
+    }
+
+    @Override
+    public int getActiveControllerCount() {
+        return aggregator.getActiveControllerCount();
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return aggregator.getCurrentTotalBytes();
+    }
+
+    @Override
+    public long getTotalRecords() {
+        return aggregator.getCurrentTotalRecords();
+    }
+
+    @Override
+    public long getBytesPerSec() {
+        return aggregator.getCurrentBytesPerSec(aggregator.getClock().millis());
+    }
+
+    @Override
+    public long getRecordsPerSec() {
+        return aggregator.getCurrentRecordsPerSec(aggregator.getClock().millis());
+    }
+
+    @Override
+    public Map<Integer, Long> getTaskBytesPerSec() {
+        long nowTime = aggregator.getClock().millis();
+        Map<Integer, Long> rates = new LinkedHashMap<>();
+        for (SpeedometerSpeedController controller : aggregator.getControllerList()) {
+            rates.put(controller.getSequence(), controller.getPeriodBytesPerSec(nowTime));
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<Integer, Long> getTaskRecordsPerSec() {
+        long nowTime = aggregator.getClock().millis();
+        Map<Integer, Long> rates = new LinkedHashMap<>();
+        for (SpeedometerSpeedController controller : aggregator.getControllerList()) {
+            rates.put(controller.getSequence(), controller.getPeriodRecordsPerSec(nowTime));
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<Integer, String> getTaskNames() {
+        Map<Integer, String> names = new LinkedHashMap<>();
+        for (SpeedometerSpeedController controller : aggregator.getControllerList()) {
+            names.put(controller.getSequence(), controller.getName());
+        }
+        return names;
+    }
+
+    @Override
+    public long getSpeedLimit() {
+        for (SpeedometerSpeedController controller : aggregator.getControllerList()) {
+            return controller.getSpeedLimit();
+        }
+        return 0;
+    }
+
+    @Override
+    public long getRecordsSpeedLimit() {
+        for (SpeedometerSpeedController controller : aggregator.getControllerList()) {
+            return controller.getRecordsSpeedLimit();
+        }
+        return 0;
+    }
+
+    @Override
+    public void setSpeedLimit(long speedLimit) {
+        if (speedLimit < 0) {
+            throw new IllegalArgumentException("speed_limit must not be negative: " + speedLimit);
+        }
+        aggregator.setSpeedLimit(speedLimit);
+    }
+
+    @Override
+    public void setRecordsSpeedLimit(long recordsSpeedLimit) {
+        if (recordsSpeedLimit < 0) {
+            throw new IllegalArgumentException("records_speed_limit must not be negative: " + recordsSpeedLimit);
+        }
+        aggregator.setRecordsSpeedLimit(recordsSpeedLimit);
+    }
+
+    // NOTE: The id is added because filters without label, or jobs in the same
+    // JVM, would have the same name.
+    static ObjectName toObjectName(String label, String id) {
+        try {
+            return new ObjectName(DOMAIN + ":type=Speedometer,label=" + ObjectName.quote(label != null ? label : "")
+                    + ",id=" + ObjectName.quote(id != null ? id : ""));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid label for JMX: " + label, e);
+        }
+    }
+
+    private static MBeanServer getMBeanServer() {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
+}
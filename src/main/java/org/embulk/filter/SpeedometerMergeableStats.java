@@ -0,0 +1,25 @@
+package org.embulk.filter;
+
+// Stats which a controller thread updates and the aggregator merges.
+// NOTE: A controller thread updates its stats without any lock, so that the
+// per-record path doesn't synchronize. Other threads copy them while reporting,
+// so a copy may be a little old, and a sum may not match its count exactly.
+// It is acceptable for log messages. Stats of stopped controllers are not
+// updated anymore, so the overall message is exact.
+interface SpeedometerMergeableStats<T extends SpeedometerMergeableStats<T>> {
+    void merge(T other);
+
+    T copy();
+
+    // Merges other into stats, or returns a copy of other if stats is null.
+    static <T extends SpeedometerMergeableStats<T>> T mergeOrCopy(T stats, T other) {
+        if (other == null) {
+            return stats;
+        }
+        if (stats == null) {
+            return other.copy();
+        }
+        stats.merge(other);
+        return stats;
+    }
+}
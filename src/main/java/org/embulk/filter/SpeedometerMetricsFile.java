@@ -0,0 +1,147 @@
+package org.embulk.filter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Append raw numeric snapshots to metrics_file as JSON Lines. Lines are
+// written by a dedicated thread, so file I/O never happens on task threads.
+class SpeedometerMetricsFile {
+    static final long CLOSE_TIMEOUT_MILLISEC = 5000;
+
+    private final String path;
+    private final ExecutorService writer;
+    private BufferedWriter out; // Used only by the writer thread.
+    private boolean failed; // Used only by the writer thread.
+
+    SpeedometerMetricsFile(String path) {
+        this.path = path;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speedometer-metrics-file");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void write(String line) {
+        try {
+            writer.execute(() -> writeLine(line));
+        } catch (RejectedExecutionException e) {
+            // Closed. A late snapshot is dropped.
+        }
+    }
+
+    // Waits for pending lines so that the last snapshot is not lost when the JVM exits.
+    void close() {
+        writer.execute(this::closeWriter);
+        writer.shutdown();
+        try {
+            writer.awaitTermination(CLOSE_TIMEOUT_MILLISEC, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    static String toJsonLine(String type, long epochMillisec, String label, int activeTasks, long elapsedMillisec,
+            long totalBytes, long totalRecords, long bytesPerSec, long recordsPerSec, long throttleNanos) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"time\":").append(epochMillisec);
+        builder.append(",\"type\":\"").append(type).append('"');
+        if (label != null && label.length() > 0) {
+            builder.append(",\"label\":");
+            appendJsonString(builder, label);
+        }
+        builder.append(",\"active\":").append(activeTasks);
+        builder.append(",\"elapsed_millisec\":").append(elapsedMillisec);
+        builder.append(",\"total_bytes\":").append(totalBytes);
+        builder.append(",\"total_records\":").append(totalRecords);
+        builder.append(",\"bytes_per_sec\":").append(bytesPerSec);
+        builder.append(",\"records_per_sec\":").append(recordsPerSec);
+        builder.append(",\"throttle_nanos\":").append(throttleNanos);
+        builder.append('}');
+        return builder.toString();
+    }
+
+    static String toTaskJsonLine(long epochMillisec, String label, String taskName, long elapsedMillisec,
+            long totalBytes, long totalRecords, long throttleCount, long throttleNanos) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"time\":").append(epochMillisec);
+        builder.append(",\"type\":\"task\"");
+        if (label != null && label.length() > 0) {
+            builder.append(",\"label\":");
+            appendJsonString(builder, label);
+        }
+        builder.append(",\"task\":");
+        appendJsonString(builder, taskName != null ? taskName : "");
+        builder.append(",\"elapsed_millisec\":").append(elapsedMillisec);
+        builder.append(",\"total_bytes\":").append(totalBytes);
+        builder.append(",\"total_records\":").append(totalRecords);
+        builder.append(",\"throttle_count\":").append(throttleCount);
+        builder.append(",\"throttle_nanos\":").append(throttleNanos);
+        builder.append('}');
+        return builder.toString();
+    }
+
+    static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    // NOTE: A failure of metrics_file doesn't stop the transfer. It is logged once.
+    private void writeLine(String line) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (out == null) {
+                out = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            out.write(line);
+            out.write('\n');
+            out.flush(); // A line is written at each log interval, so it is visible for tail -f.
+        } catch (IOException e) {
+            failed = true;
+            getLogger().warn("Failed to write speedometer metrics_file: " + path, e);
+        }
+    }
+
+    private void closeWriter() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                getLogger().warn("Failed to close speedometer metrics_file: " + path, e);
+            }
+            out = null;
+        }
+    }
+
+    private static Logger getLogger() {
+        return LoggerFactory.getLogger(SpeedometerFilterPlugin.class);
+    }
+}
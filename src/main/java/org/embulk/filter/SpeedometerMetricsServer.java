@@ -0,0 +1,160 @@
+package org.embulk.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Serve counters and gauges of aggregators in OpenMetrics text format.
+// Aggregators with the same metrics_port share a server, and each of them
+// is distinguished by its label and id.
+// NOTE: The server listens only on the loopback address unless
+// metrics_bind_address is set, because metrics have no authentication.
+// If aggregators share a port, the address of the first one is used.
+// NOTE: Values are read from volatile fields and LongAdders, so scraping
+// doesn't block tasks.
+class SpeedometerMetricsServer {
+    static final String PATH = "/metrics";
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final Map<Integer, SpeedometerMetricsServer> SERVERS = new HashMap<>();
+
+    private final int port;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<SpeedometerSpeedAggregator> aggregators = new CopyOnWriteArrayList<>();
+
+    static SpeedometerMetricsServer acquire(int port, String bindAddress, SpeedometerSpeedAggregator aggregator) throws IOException {
+        synchronized (SERVERS) {
+            SpeedometerMetricsServer metricsServer = SERVERS.get(port);
+            if (metricsServer == null) {
+                metricsServer = new SpeedometerMetricsServer(port, bindAddress);
+                SERVERS.put(port, metricsServer);
+            }
+            metricsServer.aggregators.add(aggregator);
+            return metricsServer;
+        }
+    }
+
+    private SpeedometerMetricsServer(int port, String bindAddress) throws IOException {
+        this.port = port;
+        InetAddress address = bindAddress != null ? InetAddress.getByName(bindAddress) : InetAddress.getLoopbackAddress();
+        this.server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speedometer-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    void release(SpeedometerSpeedAggregator aggregator) {
+        synchronized (SERVERS) {
+            aggregators.remove(aggregator);
+            if (aggregators.isEmpty() && SERVERS.get(port) == this) {
+                SERVERS.remove(port);
+                server.stop(0);
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = toMetricsText(aggregators).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static String toMetricsText(List<SpeedometerSpeedAggregator> aggregators) {
+        StringBuilder builder = new StringBuilder();
+        appendFamily(builder, "speedometer_bytes", "counter", "Bytes passed through the filter.");
+        for (SpeedometerSpeedAggregator aggregator : aggregators) {
+            appendSample(builder, "speedometer_bytes_total", aggregator, Long.toString(aggregator.getCurrentTotalBytes()));
+        }
+        appendFamily(builder, "speedometer_records", "counter", "Records passed through the filter.");
+        for (SpeedometerSpeedAggregator aggregator : aggregators) {
+            appendSample(builder, "speedometer_records_total", aggregator, Long.toString(aggregator.getCurrentTotalRecords()));
+        }
+        appendFamily(builder, "speedometer_bytes_per_second", "gauge", "Bytes per second in the current period.");
+        for (SpeedometerSpeedAggregator aggregator : aggregators) {
+            long nowTime = aggregator.getClock().millis();
+            appendSample(builder, "speedometer_bytes_per_second", aggregator, Long.toString(aggregator.getCurrentBytesPerSec(nowTime)));
+        }
+        appendFamily(builder, "speedometer_records_per_second", "gauge", "Records per second in the current period.");
+        for (SpeedometerSpeedAggregator aggregator : aggregators) {
+            long nowTime = aggregator.getClock().millis();
+            appendSample(builder, "speedometer_records_per_second", aggregator, Long.toString(aggregator.getCurrentRecordsPerSec(nowTime)));
+        }
+        appendFamily(builder, "speedometer_active_tasks", "gauge", "Running tasks.");
+        for (SpeedometerSpeedAggregator aggregator : aggregators) {
+            appendSample(builder, "speedometer_active_tasks", aggregator, Integer.toString(aggregator.getActiveControllerCount()));
+        }
+        appendFamily(builder, "speedometer_throttle_sleep_seconds", "counter", "Time which tasks slept for the limits.");
+        for (SpeedometerSpeedAggregator aggregator : aggregators) {
+            appendSample(builder, "speedometer_throttle_sleep_seconds_total", aggregator, Double.toString(aggregator.getCurrentThrottleNanos() / 1e9));
+        }
+        builder.append("# EOF\n");
+        return builder.toString();
+    }
+
+    private static void appendFamily(StringBuilder builder, String name, String type, String help) {
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    private static void appendSample(StringBuilder builder, String name, SpeedometerSpeedAggregator aggregator, String value) {
+        String label = aggregator.getLabel();
+        String id = aggregator.getId();
+        builder.append(name).append("{label=\"").append(escapeLabelValue(label != null ? label : ""))
+            .append("\",id=\"").append(escapeLabelValue(id != null ? id : "")).append("\"} ")
+            .append(value).append('\n');
+    }
+
+    static String escapeLabelValue(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                builder.append("\\\\");
+            } else if (c == '"') {
+                builder.append("\\\"");
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package org.embulk.filter;
+
+import java.util.List;
+
+import org.embulk.spi.Page;
+import org.msgpack.value.ImmutableValue;
+
+// Calculate an in-memory size of a page for measure: physical. Columns are
+// not read. The size is the used length of the buffer and a fixed size for
+// each referenced string and JSON value, so this is O(1) for each page.
+// NOTE: A size of a JSON value is not known without serializing it, and
+// lengths of strings are not read so as not to walk all string values.
+class SpeedometerPageSize {
+    static final int STRING_SIZE = 64;
+    static final int JSON_VALUE_SIZE = 64;
+
+    private SpeedometerPageSize() {
+    }
+
+    @SuppressWarnings("deprecation") // Page has no other way to get references.
+    static long of(Page page) {
+        long size = page.buffer().limit();
+        List<String> strings = page.getStringReferences();
+        if (strings != null) {
+            size += (long) STRING_SIZE * strings.size();
+        }
+        List<ImmutableValue> values = page.getValueReferences();
+        if (values != null) {
+            size += (long) JSON_VALUE_SIZE * values.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,86 @@
+package org.embulk.filter;
+
+// Running mean and variance of sizes of sampled records for sample_rate.
+// Sizes of skipped records are estimated by the mean, and the margin of error
+// of the estimated total is calculated from the variance.
+class SpeedometerSampleStats implements SpeedometerMergeableStats<SpeedometerSampleStats> {
+    // z-score for 95% confidence.
+    static final double Z_95 = 1.96;
+
+    private final int sampleRate;
+    private long sampledCount;
+    private long skippedCount;
+    private double mean;
+    private double m2; // Sum of squares of differences from the mean.
+
+    SpeedometerSampleStats(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    // Welford's algorithm, which is stable for a long run.
+    void add(long size) {
+        sampledCount++;
+        double delta = size - mean;
+        mean += delta / sampledCount;
+        m2 += delta * (size - mean);
+    }
+
+    void addSkipped() {
+        skippedCount++;
+    }
+
+    @Override
+    public void merge(SpeedometerSampleStats other) {
+        skippedCount += other.skippedCount;
+        if (other.sampledCount == 0) {
+            return;
+        }
+        long count = sampledCount + other.sampledCount;
+        double delta = other.mean - mean;
+        mean += delta * other.sampledCount / count;
+        m2 += other.m2 + delta * delta * sampledCount * other.sampledCount / count;
+        sampledCount = count;
+    }
+
+    @Override
+    public SpeedometerSampleStats copy() {
+        SpeedometerSampleStats stats = new SpeedometerSampleStats(sampleRate);
+        stats.merge(this);
+        return stats;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    long getSampledCount() {
+        return sampledCount;
+    }
+
+    long getSkippedCount() {
+        return skippedCount;
+    }
+
+    double getMean() {
+        return mean;
+    }
+
+    double getVariance() {
+        return sampledCount > 1 ? m2 / (sampledCount - 1) : 0.0;
+    }
+
+    double getEstimatedTotal() {
+        return mean * (sampledCount + skippedCount);
+    }
+
+    // Half width of the 95% confidence interval of the estimated total with
+    // the finite population correction. Sampled records are not estimated.
+    double getMarginOfError() {
+        long count = sampledCount + skippedCount;
+        if (sampledCount < 2 || skippedCount == 0) {
+            return 0.0;
+        }
+        double correction = (double) skippedCount / count;
+        return Z_95 * count * Math.sqrt(correction * getVariance() / sampledCount);
+    }
+}
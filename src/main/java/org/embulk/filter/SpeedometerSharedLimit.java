@@ -0,0 +1,213 @@
+package org.embulk.filter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Share speed_limit with other processes on the same host through a memory
+// mapped file. Each process has a slot which has its weight, its speed_limit
+// and a heartbeat. The limit for all processes is the minimum speed_limit of
+// live slots, and it is divided by weights.
+//
+// NOTE: Java 8 has no atomic operation for a mapped buffer, so slots are
+// updated while holding a FileLock of the file header.
+class SpeedometerSharedLimit {
+    private static final int MAGIC = 0x5350444d; // "SPDM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    static final int SLOT_COUNT = 64;
+    private static final int FILE_SIZE = HEADER_SIZE + SLOT_SIZE * SLOT_COUNT;
+
+    private static final int OWNER_OFFSET = 0;
+    private static final int HEARTBEAT_OFFSET = 8;
+    private static final int WEIGHT_OFFSET = 16;
+    private static final int LIMIT_OFFSET = 24;
+
+    // A slot without heartbeat in this time is reused by other processes.
+    static final long STALE_MILLISEC = 5000;
+    // Heartbeats are written in this interval even while all tasks wait for input.
+    static final long HEARTBEAT_INTERVAL_MILLISEC = 1000;
+
+    private static final ReentrantLock JVM_LOCK = new ReentrantLock();
+
+    private final String path;
+    private final long weight;
+    private final long ownerId;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private int slotIndex = -1;
+    private volatile long processSpeedLimit;
+    private volatile int liveProcessCount;
+
+    SpeedometerSharedLimit(String path, long weight) {
+        this.path = path;
+        this.weight = weight > 0 ? weight : 1;
+        this.ownerId = newOwnerId();
+        try {
+            this.file = new RandomAccessFile(path, "rw");
+            this.channel = file.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open shared_limit_file: " + path, e);
+        }
+        initHeader();
+    }
+
+    // Write a heartbeat and recalculate the limit for this process.
+    synchronized long refresh(long nowTime, long speedLimit) {
+        Locked locked = lock();
+        try {
+            if (slotIndex < 0 || buffer.getLong(slotOffset(slotIndex) + OWNER_OFFSET) != ownerId) {
+                slotIndex = claimSlot(nowTime);
+            }
+            if (slotIndex >= 0) {
+                int offset = slotOffset(slotIndex);
+                buffer.putLong(offset + HEARTBEAT_OFFSET, nowTime);
+                buffer.putLong(offset + WEIGHT_OFFSET, weight);
+                buffer.putLong(offset + LIMIT_OFFSET, speedLimit);
+            }
+
+            // NOTE: If all slots are used, this process still takes part without a slot.
+            long minLimit = slotIndex >= 0 ? Long.MAX_VALUE : speedLimit;
+            long totalWeight = slotIndex >= 0 ? 0 : weight;
+            int liveCount = slotIndex >= 0 ? 0 : 1;
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                int offset = slotOffset(i);
+                if (isLive(offset, nowTime)) {
+                    minLimit = Math.min(minLimit, buffer.getLong(offset + LIMIT_OFFSET));
+                    totalWeight += buffer.getLong(offset + WEIGHT_OFFSET);
+                    liveCount++;
+                }
+            }
+            liveProcessCount = liveCount;
+            processSpeedLimit = Math.max(1, (long) ((double) minLimit * weight / totalWeight));
+            return processSpeedLimit;
+        } finally {
+            locked.unlock();
+        }
+    }
+
+    synchronized void release() {
+        if (slotIndex < 0) {
+            return;
+        }
+        Locked locked = lock();
+        try {
+            int offset = slotOffset(slotIndex);
+            if (buffer.getLong(offset + OWNER_OFFSET) == ownerId) {
+                buffer.putLong(offset + OWNER_OFFSET, 0);
+            }
+            slotIndex = -1;
+        } finally {
+            locked.unlock();
+        }
+    }
+
+    synchronized void close() {
+        release();
+        try {
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close shared_limit_file: " + path, e);
+        }
+    }
+
+    long getProcessSpeedLimit() {
+        return processSpeedLimit;
+    }
+
+    int getLiveProcessCount() {
+        return liveProcessCount;
+    }
+
+    long getWeight() {
+        return weight;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    private void initHeader() {
+        Locked locked = lock();
+        try {
+            int magic = buffer.getInt(0);
+            if (magic == 0) {
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, SLOT_COUNT);
+                buffer.putInt(0, MAGIC);
+            } else if (magic != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != SLOT_COUNT) {
+                throw new IllegalStateException("shared_limit_file is not a speedometer file: " + path);
+            }
+        } finally {
+            locked.unlock();
+        }
+    }
+
+    private int claimSlot(long nowTime) {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            int offset = slotOffset(i);
+            if (!isLive(offset, nowTime)) {
+                buffer.putLong(offset + OWNER_OFFSET, ownerId);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isLive(int offset, long nowTime) {
+        return buffer.getLong(offset + OWNER_OFFSET) != 0
+            && buffer.getLong(offset + HEARTBEAT_OFFSET) + STALE_MILLISEC >= nowTime;
+    }
+
+    private static int slotOffset(int index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    private static long newOwnerId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    // NOTE: A FileLock is held by a JVM, so threads in the same JVM are
+    // serialized by JVM_LOCK. Otherwise, OverlappingFileLockException is thrown.
+    private Locked lock() {
+        JVM_LOCK.lock();
+        try {
+            return new Locked(channel.lock(0, HEADER_SIZE, false));
+        } catch (IOException e) {
+            JVM_LOCK.unlock();
+            throw new UncheckedIOException("Failed to lock shared_limit_file: " + path, e);
+        }
+    }
+
+    private static class Locked {
+        private final FileLock lock;
+
+        Locked(FileLock lock) {
+            this.lock = lock;
+        }
+
+        void unlock() {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to unlock shared_limit_file", e);
+            } finally {
+                JVM_LOCK.unlock();
+            }
+        }
+    }
+}
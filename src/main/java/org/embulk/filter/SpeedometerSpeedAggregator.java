@@ -1,36 +1,148 @@
 package org.embulk.filter;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.JMException;
 
 import org.embulk.filter.SpeedometerFilterPlugin.PluginTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 class SpeedometerSpeedAggregator {
-    private static final Object INSTANCE_LOCK = new Object();
-    private static SpeedometerSpeedAggregator INSTANCE;
+    // Aggregators of running transactions. Each speedometer filter in a pipeline
+    // has its own aggregator, so they don't share counters and limits.
+    private static final Map<String, SpeedometerSpeedAggregator> INSTANCES = new HashMap<>();
+    // Ids of transactions running in this JVM. Guarded by INSTANCES.
+    private static final Set<String> TRANSACTIONS = new HashSet<>();
 
     private final long INITAL_START_TIME = 0;
 
+    // Shares of the limit are recomputed by demand in this interval.
+    static final int REBALANCE_INTERVAL_MILLISEC = 1000;
+    // An active controller which was not throttled can use this ratio more than its usage.
+    static final double REBALANCE_HEADROOM = 1.25;
+    // An idle controller keeps at least 1/this of an even share.
+    static final int REBALANCE_MIN_SHARE_DIVISOR = 10;
+    // For target_latency_ms, the limit is increased by 1/this of speed_limit
+    // at each rebalance while the latency is under the target.
+    static final int ADAPTIVE_INCREASE_DIVISOR = 20;
+    // The limit is multiplied by this when the latency is over the target.
+    static final double ADAPTIVE_DECREASE_FACTOR = 0.7;
+    // The limit is not decreased under 1/this of speed_limit.
+    static final int ADAPTIVE_MIN_LIMIT_DIVISOR = 100;
+
     private final AtomicInteger activeControllerCount = new AtomicInteger(0);
+    private final AtomicInteger controllerSequence = new AtomicInteger(0);
     private final AtomicLong globalStartTime = new AtomicLong(INITAL_START_TIME);
-    private final AtomicLong globalTotalBytes = new AtomicLong(0);
-    private final AtomicLong globalTotalRecords = new AtomicLong(0);
-    private final AtomicLong previousLogReportTimeMillisec = new AtomicLong(INITAL_START_TIME);
+    private final LongAdder globalTotalBytes = new LongAdder();
+    private final LongAdder globalTotalRecords = new LongAdder();
+    private final LongAdder globalThrottleNanos = new LongAdder();
+    // Guards moving totals of a stopping controller into global ones, so that
+    // current totals are never counted twice or dropped. Task threads don't take
+    // this lock except when they stop.
+    private final Object totalsLock = new Object();
+    private final AtomicLong previousRebalanceTimeMillisec = new AtomicLong(INITAL_START_TIME);
+    private final Object rebalanceLock = new Object();
+    private final Object reporterLock = new Object();
+    private ScheduledExecutorService reporter; // Running while there is an active controller.
     private final String logFormat;
+    private final String columnLogFormat;
+    private final StoppedStats<SpeedometerColumnStats> stoppedColumnStats = new StoppedStats<>();
+    private final String latencyLogFormat;
+    private final String taskLogFormat;
+    private final String skewLogFormat;
+    private final StoppedStats<SpeedometerLatencyHistogram> stoppedUpstreamWaits = new StoppedStats<>();
+    private final StoppedStats<SpeedometerLatencyHistogram> stoppedDownstreamBlocks = new StoppedStats<>();
+    private final String stageLogFormat;
+    private final StoppedStats<SpeedometerStageTimes> stoppedStageTimes = new StoppedStats<>();
+    private final String sampleLogFormat;
+    private final StoppedStats<SpeedometerSampleStats> stoppedSampleStats = new StoppedStats<>();
+    private final SpeedometerSharedLimit sharedLimit; // null if shared_limit_file is not set.
+    private final SpeedometerClock clock;
+    private final String id;
+    private final String label;
+    // true if the transaction runs in another JVM. Then, this is removed when
+    // all opened controllers stop because removeInstance is never called here.
+    private final boolean releaseOnIdle;
+    private int openCount; // Guarded by INSTANCES. Used only if releaseOnIdle is true.
+    private SpeedometerMXBeanImpl mxBean; // Registered while there is an active controller.
+    // Serving from the first controller until close, so that scrapers see
+    // neither a missing endpoint nor reset counters between tasks.
+    private SpeedometerMetricsServer metricsServer;
+    private volatile SpeedometerMetricsFile metricsFile; // Open while there is an active controller.
+    // Limits set through JMX. They are applied to controllers started later too. -1 means not set.
+    private volatile long speedLimitOverride = -1;
+    private volatile long recordsSpeedLimitOverride = -1;
+    // The limit changed by target_latency_ms. It is kept apart from speed_limit,
+    // and reset when speed_limit is set through JMX. -1 means not adapted.
+    // Written only with rebalanceLock.
+    private volatile long adaptiveSpeedLimit = -1;
+
+    // NOTE: Controllers are added or removed only when a task starts or stops,
+    // so iterating this list doesn't need a lock.
+    private final List<SpeedometerSpeedController> controllerList = new CopyOnWriteArrayList<>();
+
+    static String newAggregatorId() {
+        return UUID.randomUUID().toString();
+    }
 
-    // TODO: We can use google's library.
-    private final List<SpeedometerSpeedController> controllerList = new ArrayList<>();
+    // Called when a transaction starts.
+    static void addTransaction(String id) {
+        synchronized (INSTANCES) {
+            TRANSACTIONS.add(id);
+        }
+    }
 
+    // Called when a task opens a controller.
+    // NOTE: If tasks run in another JVM than the transaction, an aggregator is
+    // created by the first task there and removed when all its controllers stop.
     public static SpeedometerSpeedAggregator getInstance(PluginTask task) {
-        synchronized (INSTANCE_LOCK) {
-            if (INSTANCE == null) {
-                INSTANCE = new SpeedometerSpeedAggregator(task != null && task.getLabel().isPresent() ? task.getLabel().get() : null);
+        String label = task != null && task.getLabel() != null && task.getLabel().isPresent() ? task.getLabel().get() : null;
+        String aggregatorId = task != null ? task.getAggregatorId() : null;
+        String id = aggregatorId != null ? aggregatorId : "label:" + (label != null ? label : "");
+        synchronized (INSTANCES) {
+            SpeedometerSpeedAggregator instance = INSTANCES.get(id);
+            if (instance == null) {
+                instance = new SpeedometerSpeedAggregator(id, label, newSharedLimit(task), SpeedometerClock.SYSTEM, !TRANSACTIONS.contains(id));
+                INSTANCES.put(id, instance);
             }
-            return INSTANCE;
+            instance.openCount++;
+            return instance;
+        }
+    }
+
+    // Called when a transaction finishes.
+    static void removeInstance(String id) {
+        SpeedometerSpeedAggregator instance;
+        synchronized (INSTANCES) {
+            TRANSACTIONS.remove(id);
+            instance = INSTANCES.remove(id);
+        }
+        if (instance != null) {
+            instance.close();
+        }
+    }
+
+    static boolean hasInstance(String id) {
+        synchronized (INSTANCES) {
+            return INSTANCES.containsKey(id);
         }
     }
 
@@ -39,53 +151,348 @@ class SpeedometerSpeedAggregator {
     }
 
     SpeedometerSpeedAggregator(String label) {
+        this(label, null);
+    }
+
+    SpeedometerSpeedAggregator(String label, SpeedometerSharedLimit sharedLimit) {
+        this(label, sharedLimit, SpeedometerClock.SYSTEM);
+    }
+
+    SpeedometerSpeedAggregator(String label, SpeedometerSharedLimit sharedLimit, SpeedometerClock clock) {
+        this(newAggregatorId(), label, sharedLimit, clock, false);
+    }
+
+    private SpeedometerSpeedAggregator(String id, String label, SpeedometerSharedLimit sharedLimit, SpeedometerClock clock, boolean releaseOnIdle) {
+        this.sharedLimit = sharedLimit;
+        this.clock = clock;
+        this.id = id;
+        this.label = label;
+        this.releaseOnIdle = releaseOnIdle;
         logFormat = initLogFormat(label);
+        columnLogFormat = initColumnLogFormat(label);
+        latencyLogFormat = initLatencyLogFormat(label);
+        taskLogFormat = initLogFormat(label, "task: %s, total: %s, speed: %s/s, records: %s, record-speed: %s/s, idle: %s}}");
+        skewLogFormat = initLogFormat(label, "skew: %.2f, max-speed: %s/s, median-speed: %s/s, slowest: %s, slowest-speed: %s/s}}");
+        sampleLogFormat = initLogFormat(label, "sample-rate: 1/%d, sampled: %s, skipped: %s, mean-record: %s, estimated-total: %s, margin: %s (95%%)}}");
+        stageLogFormat = initLogFormat(label, "upstream-wait: %s (%.1f%%), speedometer: %s (%.1f%%), throttle: %s (%.1f%%), downstream: %s (%.1f%%), bottleneck: %s}}");
         showLogMessage(activeControllerCount.get(), 0, 0, 0, 0, 0);
     }
 
+    int nextControllerSequence() {
+        return controllerSequence.incrementAndGet();
+    }
+
     public void startController(SpeedometerSpeedController controller, long nowTime) {
         globalStartTime.compareAndSet(INITAL_START_TIME, nowTime);
-        activeControllerCount.incrementAndGet();
-        synchronized (controllerList) {
-            controllerList.add(controller);
+        synchronized (reporterLock) {
+            if (activeControllerCount.incrementAndGet() == 1) {
+                startReporter(controller.getLogIntervalMillisec());
+                if (controller.isJmx()) {
+                    registerMXBean();
+                }
+                if (controller.getMetricsPort() > 0 && metricsServer == null) {
+                    startMetricsServer(controller.getMetricsPort(), controller.getMetricsBindAddress());
+                }
+                if (controller.getMetricsFile() != null) {
+                    metricsFile = new SpeedometerMetricsFile(controller.getMetricsFile());
+                }
+            }
+        }
+        if (speedLimitOverride >= 0) {
+            controller.setSpeedLimit(speedLimitOverride);
+        }
+        if (recordsSpeedLimitOverride >= 0) {
+            controller.setRecordsSpeedLimit(recordsSpeedLimitOverride);
         }
+        controllerList.add(controller);
+        if (sharedLimit != null && controller.getSpeedLimit() > 0) {
+            sharedLimit.refresh(System.currentTimeMillis(), controller.getSpeedLimit());
+        }
+        updateEvenShares();
     }
 
     public void stopController(SpeedometerSpeedController controller) {
-        synchronized (controllerList) {
+        synchronized (totalsLock) {
+            globalTotalBytes.add(controller.getTotalBytes());
+            globalTotalRecords.add(controller.getTotalRecords());
+            globalThrottleNanos.add(controller.getThrottleNanos());
             controllerList.remove(controller);
         }
-        long runningCount = activeControllerCount.decrementAndGet();
-        globalTotalBytes.addAndGet(controller.getTotalBytes());
-        globalTotalRecords.addAndGet(controller.getTotalRecords());
+        long runningCount;
+        SpeedometerMetricsFile closingMetricsFile = null;
+        synchronized (reporterLock) {
+            runningCount = activeControllerCount.decrementAndGet();
+            if (runningCount == 0) {
+                stopReporter();
+                unregisterMXBean();
+                closingMetricsFile = metricsFile;
+                metricsFile = null;
+            }
+        }
+        updateEvenShares();
+        stoppedColumnStats.add(controller.getColumnStats());
+        stoppedUpstreamWaits.add(controller.getUpstreamWaits());
+        stoppedDownstreamBlocks.add(controller.getDownstreamBlocks());
+        stoppedStageTimes.add(controller.getStageTimes());
+        stoppedSampleStats.add(controller.getSampleStats());
+        writeTaskMetrics(closingMetricsFile != null ? closingMetricsFile : metricsFile, controller);
 
         // NOTE: Sometimes, there is no running thread nevertheless there are remaining tasks.
         // So, this message may be output while running tasks.
         if (runningCount == 0) {
+            if (sharedLimit != null) {
+                sharedLimit.release();
+            }
             showOverallMessage();
+            showColumnStatsMessage(getGlobalColumnStats());
+            showLatencyMessage(getLatencyHistograms(false));
+            showStageMessage(getStageTimes(false));
+            showSampleMessage(getSampleStats(false));
+            if (closingMetricsFile != null) {
+                writeOverallMetrics(closingMetricsFile);
+                closingMetricsFile.close();
+            }
+        }
+        releaseIfIdle();
+    }
+
+    // Called when a controller stops, or when a task fails to open after getInstance.
+    // NOTE: A task which already got this aggregator is counted in openCount,
+    // so this is never closed before the task starts its controller.
+    void releaseIfIdle() {
+        if (!releaseOnIdle) {
+            return;
+        }
+        synchronized (INSTANCES) {
+            if (--openCount > 0 || INSTANCES.get(id) != this) {
+                return;
+            }
+            INSTANCES.remove(id);
         }
+        close();
     }
 
+    // A share is cached in each controller when controllers are changed or
+    // rebalanced, so this doesn't read any shared counter usually.
     public long getSpeedLimitForController(SpeedometerSpeedController controller) {
-        return controller.getSpeedLimit() / activeControllerCount.get();
+        long share = controller.getSpeedLimitShare();
+        return share > 0 ? share : toEvenShare(getSpeedLimit(controller), activeControllerCount.get());
     }
 
-    public void checkProgress(long nowTime, int logIntervalMillisec) {
-        if (logIntervalMillisec <= 0) {
-            return;
-        }
+    public long getRecordsSpeedLimitForController(SpeedometerSpeedController controller) {
+        long share = controller.getRecordsSpeedLimitShare();
+        return share > 0 ? share : toEvenShare(controller.getRecordsSpeedLimit(), activeControllerCount.get());
+    }
 
-        long previousTime = previousLogReportTimeMillisec.get();
+    public void checkRebalance(long nowTime) {
+        long previousTime = previousRebalanceTimeMillisec.get();
         if (previousTime == INITAL_START_TIME) {
-            previousLogReportTimeMillisec.compareAndSet(INITAL_START_TIME, nowTime);
-        } else {
-            long nowInterval = previousTime + logIntervalMillisec;
-            if (nowInterval < nowTime) {
-                if (previousLogReportTimeMillisec.compareAndSet(previousTime, nowTime)) {
-                    showProgressMessage(nowTime);
-                    renewPeriods();
-                }
+            previousRebalanceTimeMillisec.compareAndSet(INITAL_START_TIME, nowTime);
+        } else if (previousTime + REBALANCE_INTERVAL_MILLISEC < nowTime) {
+            if (previousRebalanceTimeMillisec.compareAndSet(previousTime, nowTime)) {
+                rebalance(nowTime - previousTime);
+            }
+        }
+    }
+
+    // A controller which is blocked on input or finished its data does not use
+    // its share. So, unused shares are given to controllers which want more
+    // with max-min fairness.
+    void rebalance(long timeDeltaMillisec) {
+        synchronized (rebalanceLock) {
+            List<SpeedometerSpeedController> controllers = new ArrayList<>(controllerList);
+            if (controllers.isEmpty()) {
+                return;
+            }
+
+            int size = controllers.size();
+            SpeedometerSpeedController first = controllers.get(0);
+            long bytesLimit = getSpeedLimit(first);
+            long recordsLimit = first.getRecordsSpeedLimit();
+            long[] bytesDemands = new long[size];
+            long[] recordsDemands = new long[size];
+            boolean throttled = false;
+            for (int i = 0; i < size; i++) {
+                long[] demand = controllers.get(i).sampleDemand(timeDeltaMillisec);
+                throttled |= demand[0] == Long.MAX_VALUE;
+                bytesDemands[i] = toDemand(demand[0], bytesLimit, size);
+                recordsDemands[i] = toDemand(demand[1], recordsLimit, size);
+            }
+            if (first.getTargetLatencyNanos() > 0 && first.getSpeedLimit() > 0) {
+                // NOTE: Only speed_limit is adapted. target_latency_ms without speed_limit is rejected by the plugin.
+                adaptSpeedLimit(controllers, first.getTargetLatencyNanos(), throttled);
+                bytesLimit = getSpeedLimit(first);
+            }
+
+            long[] bytesShares = allocateFairShares(bytesLimit, bytesDemands);
+            long[] recordsShares = allocateFairShares(recordsLimit, recordsDemands);
+            for (int i = 0; i < size; i++) {
+                controllers.get(i).setSpeedLimitShare(bytesShares[i], recordsShares[i]);
+            }
+        }
+    }
+
+    // AIMD like TCP congestion control. The average time in the next plugin is
+    // the signal of congestion of the destination.
+    private void adaptSpeedLimit(List<SpeedometerSpeedController> controllers, long targetLatencyNanos, boolean throttled) {
+        long nanos = 0;
+        long count = 0;
+        for (SpeedometerSpeedController controller : controllers) {
+            long[] sample = controller.sampleDownstream();
+            nanos += sample[0];
+            count += sample[1];
+        }
+        if (count == 0) {
+            return; // No page was added to the next plugin, so there is no signal.
+        }
+        // speed_limit is read at each time, so the step and the minimum follow a limit set through JMX.
+        SpeedometerSpeedController first = controllers.get(0);
+        long speedLimit = getSpeedLimit(first);
+        long newSpeedLimit = toAdaptiveSpeedLimit(speedLimit, first.getSpeedLimit(), nanos / count, targetLatencyNanos, throttled);
+        if (newSpeedLimit != speedLimit) {
+            adaptiveSpeedLimit = newSpeedLimit;
+            Logger logger = getLogger();
+            if (logger != null && logger.isDebugEnabled()) {
+                logger.debug(String.format("speedometer: the limit is adapted to %s/s by downstream latency %s.",
+                        SpeedometerUtil.toByteText(newSpeedLimit), SpeedometerUtil.toLatencyText(nanos / count)));
+            }
+        }
+    }
+
+    // NOTE: The limit is increased only if tasks were throttled. Otherwise, the
+    // limit would grow forever while the input is slower than the limit.
+    static long toAdaptiveSpeedLimit(long speedLimit, long baseSpeedLimit, long latencyNanos, long targetLatencyNanos, boolean throttled) {
+        if (latencyNanos > targetLatencyNanos) {
+            long minSpeedLimit = Math.max(1, baseSpeedLimit / ADAPTIVE_MIN_LIMIT_DIVISOR);
+            return Math.max(minSpeedLimit, (long) (speedLimit * ADAPTIVE_DECREASE_FACTOR));
+        } else if (throttled) {
+            return speedLimit + Math.max(1, baseSpeedLimit / ADAPTIVE_INCREASE_DIVISOR);
+        }
+        return speedLimit;
+    }
+
+    // Returns max / median of rates. 1.0 means no skew.
+    static double toSkew(long[] sortedRates) {
+        long median = toMedian(sortedRates);
+        long max = sortedRates[sortedRates.length - 1];
+        return median > 0 ? (double) max / median : (max > 0 ? Double.POSITIVE_INFINITY : 1.0);
+    }
+
+    static long toMedian(long[] sortedRates) {
+        int size = sortedRates.length;
+        return size % 2 == 1 ? sortedRates[size / 2] : (sortedRates[size / 2 - 1] + sortedRates[size / 2]) / 2;
+    }
+
+    // Returns true if the slowest task is slower than median by the factor.
+    static boolean isLagging(long slowestRate, long medianRate, double factor) {
+        return factor > 0 && slowestRate * factor < medianRate;
+    }
+
+    // Max-min fair allocation. Demands are filled from the smallest one and
+    // the remaining limit is shared by controllers which want more. If some
+    // limit is still left, then it is divided evenly.
+    static long[] allocateFairShares(long limit, long[] demands) {
+        int size = demands.length;
+        long[] shares = new long[size];
+        if (limit <= 0 || size == 0) {
+            return shares;
+        }
+
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(demands[a], demands[b]));
+
+        long remaining = limit;
+        for (int i = 0; i < size; i++) {
+            int index = order[i];
+            long fairShare = remaining / (size - i);
+            shares[index] = Math.min(demands[index], fairShare);
+            remaining -= shares[index];
+        }
+
+        long extra = remaining / size;
+        for (int i = 0; i < size; i++) {
+            shares[i] = Math.max(1, shares[i] + extra);
+        }
+        return shares;
+    }
+
+    // Called through JMX. An operator's limit wins over the adapted one, and
+    // target_latency_ms starts to adapt again from the new limit.
+    void setSpeedLimit(long speedLimit) {
+        synchronized (rebalanceLock) {
+            speedLimitOverride = speedLimit;
+            adaptiveSpeedLimit = -1;
+            for (SpeedometerSpeedController controller : controllerList) {
+                controller.setSpeedLimit(speedLimit);
             }
+            updateEvenShares();
+        }
+    }
+
+    void setRecordsSpeedLimit(long recordsSpeedLimit) {
+        recordsSpeedLimitOverride = recordsSpeedLimit;
+        for (SpeedometerSpeedController controller : controllerList) {
+            controller.setRecordsSpeedLimit(recordsSpeedLimit);
+        }
+        updateEvenShares();
+    }
+
+    boolean isMXBeanRegistered() {
+        synchronized (reporterLock) {
+            return mxBean != null;
+        }
+    }
+
+    // Returns the limit for all controllers in this process.
+    long getSpeedLimit(SpeedometerSpeedController controller) {
+        long speedLimit = adaptiveSpeedLimit;
+        if (sharedLimit != null) {
+            long processSpeedLimit = sharedLimit.getProcessSpeedLimit();
+            if (processSpeedLimit > 0) {
+                return speedLimit > 0 ? Math.min(speedLimit, processSpeedLimit) : processSpeedLimit;
+            }
+        }
+        return speedLimit > 0 ? speedLimit : controller.getSpeedLimit();
+    }
+
+    // Called by the reporter thread every log_interval_seconds.
+    void reportProgress(long nowTime) {
+        showProgressMessage(nowTime);
+        writeProgressMetrics(nowTime);
+        showColumnStatsMessage(getIntervalColumnStats());
+        showLatencyMessage(getLatencyHistograms(true));
+        showStageMessage(getStageTimes(true));
+        showSampleMessage(getSampleStats(true));
+        showTaskMessages(nowTime);
+        renewPeriods();
+    }
+
+    // Called when the transaction finishes, or when all tasks stop in another JVM.
+    // The metrics server is stopped here. The reporter and the MXBean are
+    // normally stopped with the last controller already.
+    void close() {
+        synchronized (reporterLock) {
+            stopReporter();
+            unregisterMXBean();
+            stopMetricsServer();
+        }
+        if (sharedLimit != null) {
+            sharedLimit.close();
+        }
+    }
+
+    boolean isMetricsServerRunning() {
+        synchronized (reporterLock) {
+            return metricsServer != null;
+        }
+    }
+
+    boolean isReporterRunning() {
+        synchronized (reporterLock) {
+            return reporter != null;
         }
     }
 
@@ -102,25 +509,292 @@ class SpeedometerSpeedAggregator {
     }
 
     long getGlobalTotalBytes() {
-        return globalTotalBytes.get();
+        return globalTotalBytes.sum();
     }
 
     long getGlobalTotalRecords() {
-        return globalTotalRecords.get();
+        return globalTotalRecords.sum();
     }
 
-    List<SpeedometerSpeedController> getControllerList() {
-        List<SpeedometerSpeedController> copyList;
-        synchronized (controllerList) {
-            copyList = new ArrayList<SpeedometerSpeedController>(controllerList);
+    // Current values of stopped and active controllers. Values of controllers
+    // are read from volatile fields, and only a stopping controller waits for
+    // totalsLock, so reading them doesn't block running tasks.
+    long getCurrentTotalBytes() {
+        synchronized (totalsLock) {
+            long totalBytes = globalTotalBytes.sum();
+            for (SpeedometerSpeedController controller : controllerList) {
+                totalBytes += controller.getTotalBytes();
+            }
+            return totalBytes;
+        }
+    }
+
+    long getCurrentTotalRecords() {
+        synchronized (totalsLock) {
+            long totalRecords = globalTotalRecords.sum();
+            for (SpeedometerSpeedController controller : controllerList) {
+                totalRecords += controller.getTotalRecords();
+            }
+            return totalRecords;
+        }
+    }
+
+    long getCurrentThrottleNanos() {
+        synchronized (totalsLock) {
+            long throttleNanos = globalThrottleNanos.sum();
+            for (SpeedometerSpeedController controller : controllerList) {
+                throttleNanos += controller.getThrottleNanos();
+            }
+            return throttleNanos;
         }
-        return copyList;
+    }
+
+    long getCurrentBytesPerSec(long nowTime) {
+        long bytesPerSec = 0;
+        for (SpeedometerSpeedController controller : controllerList) {
+            bytesPerSec += controller.getPeriodBytesPerSec(nowTime);
+        }
+        return bytesPerSec;
+    }
+
+    long getCurrentRecordsPerSec(long nowTime) {
+        long recordsPerSec = 0;
+        for (SpeedometerSpeedController controller : controllerList) {
+            recordsPerSec += controller.getPeriodRecordsPerSec(nowTime);
+        }
+        return recordsPerSec;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    // Distinguishes aggregators with the same label in a JVM.
+    String getId() {
+        return id;
+    }
+
+    List<SpeedometerSpeedController> getControllerList() {
+        return Collections.unmodifiableList(controllerList);
     }
 
     String getLogFormat() {
         return logFormat;
     }
 
+    String getColumnLogFormat() {
+        return columnLogFormat;
+    }
+
+    SpeedometerColumnStats getGlobalColumnStats() {
+        return stoppedColumnStats.copy();
+    }
+
+    // Stats of stopped and active controllers. null if no controller
+    // wants column stats at each interval.
+    SpeedometerColumnStats getIntervalColumnStats() {
+        SpeedometerColumnStats stats = null;
+        for (SpeedometerSpeedController controller : controllerList) {
+            SpeedometerColumnStats controllerStats = controller.getColumnStats();
+            if (controllerStats != null && controllerStats.isEachInterval()) {
+                if (stats == null) {
+                    stats = stoppedColumnStats.copy();
+                }
+                stats = SpeedometerMergeableStats.mergeOrCopy(stats, controllerStats);
+            }
+        }
+        return stats;
+    }
+
+    String getLatencyLogFormat() {
+        return latencyLogFormat;
+    }
+
+    // Returns { upstream waits, downstream blocks } or null if latency_stats is disabled.
+    SpeedometerLatencyHistogram[] getLatencyHistograms(boolean withActiveControllers) {
+        SpeedometerLatencyHistogram upstreamWaits = collectStats(stoppedUpstreamWaits, SpeedometerSpeedController::getUpstreamWaits, withActiveControllers);
+        SpeedometerLatencyHistogram downstreamBlocks = collectStats(stoppedDownstreamBlocks, SpeedometerSpeedController::getDownstreamBlocks, withActiveControllers);
+        return upstreamWaits != null && downstreamBlocks != null ? new SpeedometerLatencyHistogram[] { upstreamWaits, downstreamBlocks } : null;
+    }
+
+    String getStageLogFormat() {
+        return stageLogFormat;
+    }
+
+    // Returns times of stopped controllers and active ones if withActiveControllers
+    // is true, or null if stage_stats is disabled.
+    SpeedometerStageTimes getStageTimes(boolean withActiveControllers) {
+        return collectStats(stoppedStageTimes, SpeedometerSpeedController::getStageTimes, withActiveControllers);
+    }
+
+    String getSampleLogFormat() {
+        return sampleLogFormat;
+    }
+
+    // Returns stats of stopped controllers and active ones if withActiveControllers
+    // is true, or null if sample_rate is 1.
+    SpeedometerSampleStats getSampleStats(boolean withActiveControllers) {
+        return collectStats(stoppedSampleStats, SpeedometerSpeedController::getSampleStats, withActiveControllers);
+    }
+
+    // Returns a copy of stats of stopped controllers merged with ones of active
+    // controllers if withActiveControllers is true. null if no controller has them.
+    private <T extends SpeedometerMergeableStats<T>> T collectStats(StoppedStats<T> stoppedStats,
+            Function<SpeedometerSpeedController, T> getter, boolean withActiveControllers) {
+        T stats = stoppedStats.copy();
+        if (withActiveControllers) {
+            for (SpeedometerSpeedController controller : controllerList) {
+                stats = SpeedometerMergeableStats.mergeOrCopy(stats, getter.apply(controller));
+            }
+        }
+        return stats;
+    }
+
+    SpeedometerClock getClock() {
+        return clock;
+    }
+
+    SpeedometerSharedLimit getSharedLimit() {
+        return sharedLimit;
+    }
+
+    private static SpeedometerSharedLimit newSharedLimit(PluginTask task) {
+        if (task == null || task.getSharedLimitFile() == null || !task.getSharedLimitFile().isPresent()) {
+            return null;
+        }
+        return new SpeedometerSharedLimit(task.getSharedLimitFile().get(), task.getSharedLimitWeight());
+    }
+
+    // Called by the reporter thread. The limit for this process is recalculated too.
+    // NOTE: Other processes don't share the monotonic clock, so the heartbeat is a wall clock time.
+    void refreshSharedLimit() {
+        if (sharedLimit == null || activeControllerCount.get() == 0) {
+            return;
+        }
+        List<SpeedometerSpeedController> controllers = new ArrayList<>(controllerList);
+        if (!controllers.isEmpty() && controllers.get(0).getSpeedLimit() > 0) {
+            sharedLimit.refresh(System.currentTimeMillis(), controllers.get(0).getSpeedLimit());
+        }
+    }
+
+    // NOTE: Worker threads don't write progress messages and heartbeats of
+    // shared_limit_file. So, they are written even if all tasks are waiting
+    // for their input.
+    private void startReporter(int logIntervalMillisec) {
+        if (reporter != null || (logIntervalMillisec <= 0 && sharedLimit == null)) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speedometer-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (logIntervalMillisec > 0) {
+            reporter.scheduleAtFixedRate(() -> {
+                try {
+                    reportProgress(clock.millis());
+                } catch (RuntimeException e) {
+                    // An exception stops next reports, so it is logged here.
+                    Logger logger = getLogger();
+                    if (logger != null) {
+                        logger.warn("Failed to report speedometer progress.", e);
+                    }
+                }
+            }, logIntervalMillisec, logIntervalMillisec, TimeUnit.MILLISECONDS);
+        }
+        if (sharedLimit != null) {
+            long interval = SpeedometerSharedLimit.HEARTBEAT_INTERVAL_MILLISEC;
+            reporter.scheduleAtFixedRate(() -> {
+                try {
+                    refreshSharedLimit();
+                } catch (RuntimeException e) {
+                    Logger logger = getLogger();
+                    if (logger != null) {
+                        logger.warn("Failed to refresh speedometer shared_limit_file.", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // NOTE: A failure of JMX doesn't stop the transfer.
+    private void registerMXBean() {
+        SpeedometerMXBeanImpl bean = new SpeedometerMXBeanImpl(this, label, id);
+        try {
+            bean.register();
+            mxBean = bean;
+        } catch (JMException e) {
+            Logger logger = getLogger();
+            if (logger != null) {
+                logger.warn("Failed to register speedometer MXBean: " + bean.getObjectName(), e);
+            }
+        }
+    }
+
+    private void unregisterMXBean() {
+        if (mxBean != null) {
+            try {
+                mxBean.unregister();
+            } catch (JMException e) {
+                Logger logger = getLogger();
+                if (logger != null) {
+                    logger.warn("Failed to unregister speedometer MXBean: " + mxBean.getObjectName(), e);
+                }
+            }
+            mxBean = null;
+        }
+    }
+
+    // NOTE: A failure of the metrics server doesn't stop the transfer.
+    private void startMetricsServer(int port, String bindAddress) {
+        try {
+            metricsServer = SpeedometerMetricsServer.acquire(port, bindAddress, this);
+        } catch (IOException e) {
+            Logger logger = getLogger();
+            if (logger != null) {
+                logger.warn("Failed to start speedometer metrics server on port " + port, e);
+            }
+        }
+    }
+
+    private void stopMetricsServer() {
+        if (metricsServer != null) {
+            metricsServer.release(this);
+            metricsServer = null;
+        }
+    }
+
+    private void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    // Shares are reset to even ones until the next rebalance.
+    private void updateEvenShares() {
+        synchronized (rebalanceLock) {
+            int count = controllerList.size();
+            for (SpeedometerSpeedController controller : controllerList) {
+                controller.setSpeedLimitShare(toEvenShare(getSpeedLimit(controller), count),
+                        toEvenShare(controller.getRecordsSpeedLimit(), count));
+            }
+        }
+    }
+
+    private static long toEvenShare(long limit, int controllerCount) {
+        return limit > 0 ? Math.max(1, limit / Math.max(1, controllerCount)) : 0;
+    }
+
+    // NOTE: An idle controller keeps a small share so that it can start again
+    // without waiting for the next rebalance too long.
+    private static long toDemand(long usage, long limit, int controllerCount) {
+        if (usage == Long.MAX_VALUE) {
+            return usage;
+        }
+        return Math.max((long) (usage * REBALANCE_HEADROOM), limit / controllerCount / REBALANCE_MIN_SHARE_DIVISOR);
+    }
+
     private void renewPeriods() {
         for (SpeedometerSpeedController controller : getControllerList()) {
             controller.renewPeriod();
@@ -128,16 +802,10 @@ class SpeedometerSpeedAggregator {
     }
 
     private void showProgressMessage(long nowTime) {
-        long currentTotalSize = globalTotalBytes.get();
-        long currentBytesPerSec = 0;
-        long currentTotalRecords = globalTotalRecords.get();
-        long currentRecordsPerSec = 0;
-        for (SpeedometerSpeedController controller : getControllerList()) {
-            currentTotalSize += controller.getTotalBytes();
-            currentTotalRecords += controller.getTotalRecords();
-            currentBytesPerSec += controller.getPeriodBytesPerSec(nowTime);
-            currentRecordsPerSec += controller.getPeriodRecordsPerSec(nowTime);
-        }
+        long currentTotalSize = getCurrentTotalBytes();
+        long currentBytesPerSec = getCurrentBytesPerSec(nowTime);
+        long currentTotalRecords = getCurrentTotalRecords();
+        long currentRecordsPerSec = getCurrentRecordsPerSec(nowTime);
 
         long timeDelta = nowTime - globalStartTime.get();
         timeDelta = timeDelta > 0 ? timeDelta : 1;
@@ -145,13 +813,50 @@ class SpeedometerSpeedAggregator {
         showLogMessage(activeControllerCount.get(), currentTotalSize, timeDelta, currentBytesPerSec, currentTotalRecords, currentRecordsPerSec);
     }
 
+    private void writeProgressMetrics(long nowTime) {
+        SpeedometerMetricsFile file = metricsFile;
+        if (file != null) {
+            file.write(SpeedometerMetricsFile.toJsonLine("progress", System.currentTimeMillis(), label,
+                    activeControllerCount.get(), toElapsedMillisec(nowTime),
+                    getCurrentTotalBytes(), getCurrentTotalRecords(),
+                    getCurrentBytesPerSec(nowTime), getCurrentRecordsPerSec(nowTime), getCurrentThrottleNanos()));
+        }
+    }
+
+    // A task line is like a task report. Lines of all processes can be summed
+    // up offline even if tasks run on different hosts.
+    private void writeTaskMetrics(SpeedometerMetricsFile file, SpeedometerSpeedController controller) {
+        if (file != null) {
+            file.write(SpeedometerMetricsFile.toTaskJsonLine(System.currentTimeMillis(), label, controller.getName(),
+                    controller.getElapsedMillisec(clock.millis()), controller.getTotalBytes(), controller.getTotalRecords(),
+                    controller.getThrottleCount(), controller.getThrottleNanos()));
+        }
+    }
+
+    // Rates of the overall line are averages of the whole run.
+    private void writeOverallMetrics(SpeedometerMetricsFile file) {
+        long timeDelta = toElapsedMillisec(clock.millis());
+        long totalBytes = globalTotalBytes.sum();
+        long totalRecords = globalTotalRecords.sum();
+        file.write(SpeedometerMetricsFile.toJsonLine("overall", System.currentTimeMillis(), label,
+                activeControllerCount.get(), timeDelta, totalBytes, totalRecords,
+                (totalBytes * 1000) / timeDelta, (totalRecords * 1000) / timeDelta, globalThrottleNanos.sum()));
+    }
+
+    private long toElapsedMillisec(long nowTime) {
+        long timeDelta = nowTime - globalStartTime.get();
+        return timeDelta > 0 ? timeDelta : 1;
+    }
+
     private void showOverallMessage() {
-        long timeDelta = System.currentTimeMillis() - globalStartTime.get();
+        long timeDelta = clock.millis() - globalStartTime.get();
         timeDelta = timeDelta > 0 ? timeDelta : 1;
-        long bytesPerSec = (globalTotalBytes.get() * 1000) / timeDelta;
-        long recordsPerSec = (globalTotalRecords.get() * 1000) / timeDelta;
+        long totalBytes = globalTotalBytes.sum();
+        long totalRecords = globalTotalRecords.sum();
+        long bytesPerSec = (totalBytes * 1000) / timeDelta;
+        long recordsPerSec = (totalRecords * 1000) / timeDelta;
 
-        showLogMessage(activeControllerCount.get(), globalTotalBytes.get(), timeDelta, bytesPerSec, globalTotalRecords.get(), recordsPerSec);
+        showLogMessage(activeControllerCount.get(), totalBytes, timeDelta, bytesPerSec, totalRecords, recordsPerSec);
     }
 
     private void showLogMessage(int activeThreads, long totalBytes, long timeMilliSec, long bytesPerSec, long totalRecords, long recordsPerSec) {
@@ -167,13 +872,150 @@ class SpeedometerSpeedAggregator {
         }
     }
 
+    private void showColumnStatsMessage(SpeedometerColumnStats stats) {
+        Logger logger = getLogger();
+        if (logger != null && stats != null) {
+            for (int i = 0; i < stats.getColumnCount(); i++) {
+                logger.info(String.format(columnLogFormat,
+                        stats.getName(i),
+                        SpeedometerUtil.toByteText(stats.getBytes(i)),
+                        SpeedometerUtil.toDecimalText(stats.getNonNullCount(i)),
+                        SpeedometerUtil.toDecimalText(stats.getNullCount(i)),
+                        SpeedometerUtil.toByteText(stats.getMaxSize(i))));
+            }
+        }
+    }
+
+    // NOTE: Rates are of the current period, so a task which is waiting for
+    // its input has a low rate and a long idle time.
+    private void showTaskMessages(long nowTime) {
+        List<SpeedometerSpeedController> controllers = new ArrayList<>(controllerList);
+        if (controllers.isEmpty()) {
+            return;
+        }
+        SpeedometerSpeedController first = controllers.get(0);
+        boolean taskStats = first.isTaskStats();
+        double skewWarningFactor = first.getSkewWarningFactor();
+        Logger logger = getLogger();
+        if (logger == null || (!taskStats && skewWarningFactor <= 0)) {
+            return;
+        }
+
+        int size = controllers.size();
+        long[] rates = new long[size];
+        int slowestIndex = 0;
+        for (int i = 0; i < size; i++) {
+            SpeedometerSpeedController controller = controllers.get(i);
+            rates[i] = controller.getPeriodBytesPerSec(nowTime);
+            if (rates[i] < rates[slowestIndex]) {
+                slowestIndex = i;
+            }
+            if (taskStats) {
+                logger.info(String.format(taskLogFormat,
+                        controller.getName(),
+                        SpeedometerUtil.toByteText(controller.getTotalBytes()),
+                        SpeedometerUtil.toByteText(rates[i]),
+                        SpeedometerUtil.toDecimalText(controller.getTotalRecords()),
+                        SpeedometerUtil.toDecimalText(controller.getPeriodRecordsPerSec(nowTime)),
+                        SpeedometerUtil.toTimeText(controller.getIdleMillisec(nowTime))));
+            }
+        }
+        if (size < 2) {
+            return;
+        }
+
+        String slowestName = controllers.get(slowestIndex).getName();
+        Arrays.sort(rates);
+        long medianRate = toMedian(rates);
+        String message = String.format(skewLogFormat,
+                toSkew(rates),
+                SpeedometerUtil.toByteText(rates[size - 1]),
+                SpeedometerUtil.toByteText(medianRate),
+                slowestName,
+                SpeedometerUtil.toByteText(rates[0]));
+        if (isLagging(rates[0], medianRate, skewWarningFactor)) {
+            logger.warn(message);
+        } else if (taskStats) {
+            logger.info(message);
+        }
+    }
+
+    private void showLatencyMessage(SpeedometerLatencyHistogram[] histograms) {
+        Logger logger = getLogger();
+        if (logger != null && histograms != null) {
+            logger.info(String.format(latencyLogFormat,
+                    SpeedometerUtil.toLatencyText(histograms[0].getPercentile(50)),
+                    SpeedometerUtil.toLatencyText(histograms[0].getPercentile(99)),
+                    SpeedometerUtil.toLatencyText(histograms[0].getMaxValue()),
+                    SpeedometerUtil.toLatencyText(histograms[1].getPercentile(50)),
+                    SpeedometerUtil.toLatencyText(histograms[1].getPercentile(99)),
+                    SpeedometerUtil.toLatencyText(histograms[1].getMaxValue())));
+        }
+    }
+
+    // NOTE: Times are summed up for all tasks, so they can be longer than the elapsed time.
+    private void showStageMessage(SpeedometerStageTimes times) {
+        Logger logger = getLogger();
+        if (logger != null && times != null) {
+            logger.info(String.format(stageLogFormat,
+                    SpeedometerUtil.toTimeText(times.getUpstreamWaitNanos() / 1000000L),
+                    times.toPercentage(times.getUpstreamWaitNanos()),
+                    SpeedometerUtil.toTimeText(times.getMeasureNanos() / 1000000L),
+                    times.toPercentage(times.getMeasureNanos()),
+                    SpeedometerUtil.toTimeText(times.getThrottleNanos() / 1000000L),
+                    times.toPercentage(times.getThrottleNanos()),
+                    SpeedometerUtil.toTimeText(times.getDownstreamNanos() / 1000000L),
+                    times.toPercentage(times.getDownstreamNanos()),
+                    times.getBottleneck()));
+        }
+    }
+
+    private void showSampleMessage(SpeedometerSampleStats stats) {
+        Logger logger = getLogger();
+        if (logger != null && stats != null) {
+            logger.info(String.format(sampleLogFormat,
+                    stats.getSampleRate(),
+                    SpeedometerUtil.toDecimalText(stats.getSampledCount()),
+                    SpeedometerUtil.toDecimalText(stats.getSkippedCount()),
+                    SpeedometerUtil.toByteText(Math.round(stats.getMean())),
+                    SpeedometerUtil.toByteText(Math.round(stats.getEstimatedTotal())),
+                    SpeedometerUtil.toByteText(Math.round(stats.getMarginOfError()))));
+        }
+    }
+
     private String initLogFormat(String label) {
+        return initLogFormat(label, "active: %d, total: %s, sec: %s, speed: %s/s, records: %s, record-speed: %s/s}}");
+    }
+
+    private String initColumnLogFormat(String label) {
+        return initLogFormat(label, "column: %s, total: %s, non-null: %s, null: %s, max: %s}}");
+    }
+
+    private String initLatencyLogFormat(String label) {
+        return initLogFormat(label, "upstream-wait: {p50: %s, p99: %s, max: %s}, downstream-block: {p50: %s, p99: %s, max: %s}}}");
+    }
+
+    private String initLogFormat(String label, String values) {
         StringBuilder builder = new StringBuilder();
         builder.append("{speedometer: {");
         if (label != null && label.length() > 0) {
             builder.append("label: ").append(label).append(", ");
         }
-        builder.append("active: %d, total: %s, sec: %s, speed: %s/s, records: %s, record-speed: %s/s}}");
+        builder.append(values);
         return builder.toString();
     }
+
+    // Stats of stopped controllers. Controllers stop in their own threads, so
+    // merges are serialized. Merged stats are not updated by tasks anymore.
+    private static class StoppedStats<T extends SpeedometerMergeableStats<T>> {
+        private T stats;
+
+        synchronized void add(T controllerStats) {
+            stats = SpeedometerMergeableStats.mergeOrCopy(stats, controllerStats);
+        }
+
+        synchronized T copy() {
+            return stats != null ? stats.copy() : null;
+        }
+    }
 }
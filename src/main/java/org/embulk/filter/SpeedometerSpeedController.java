@@ -5,34 +5,88 @@ import org.embulk.filter.SpeedometerFilterPlugin.PluginTask;
 
 class SpeedometerSpeedController {
     private final SpeedometerSpeedAggregator aggregator;
+    private final SpeedometerClock clock;
 
-    private final long limitBytesPerSec;
+    private volatile long limitBytesPerSec; // This can be changed through JMX.
+    private volatile long limitRecordsPerSec;
     private final int maxSleepMillisec;
     private final int logIntervalMillisec;
+    private final SpeedometerTokenBucket bytesBucket;
+    private final SpeedometerTokenBucket recordsBucket;
+    private final boolean taskStats;
+    private final double skewWarningFactor;
+    private final boolean jmx;
+    private final int metricsPort;
+    private final String metricsBindAddress; // null if metrics_bind_address is not set.
+    private final String metricsFile; // null if metrics_file is not set.
+    private final long targetLatencyNanos; // 0 if target_latency_ms is not set.
 
+    private SpeedometerColumnStats columnStats; // null if column_stats is disabled.
+    private SpeedometerLatencyHistogram upstreamWaits; // null if latency_stats is disabled.
+    private SpeedometerLatencyHistogram downstreamBlocks; // null if latency_stats is disabled.
+    private SpeedometerStageTimes stageTimes; // null if stage_stats is disabled.
+    private SpeedometerSampleStats sampleStats; // null if sample_rate is 1.
     private long startTime;
+    private volatile long stopTime;
+    private volatile String name = "";
+    private volatile int sequence;
+    private volatile long lastActiveTime;
     private volatile long periodStartTime;
+    // NOTE: Totals are only increased, so other threads never see a smaller
+    // total while a new period starts. Period totals are only for speeds.
     private volatile long periodTotalBytes;
-    private volatile long threadTotalBytes;
+    private volatile long totalBytes;
     private volatile long periodTotalRecords;
-    private volatile long threadTotalRecords;
+    private volatile long totalRecords;
     private volatile boolean renewFlag = true;
 
+    // Used by the aggregator to share the limit by demand. 0 means an even share.
+    private volatile long limitedBytes;
+    private volatile long limitedRecords;
+    private volatile long throttleCount;
+    private volatile long throttleNanos;
+    private volatile long speedLimitShare;
+    private volatile long recordsSpeedLimitShare;
+    private long sampledBytes;
+    private long sampledRecords;
+    private long sampledThrottleCount;
+
+    // Time in the next plugin, which is used by the aggregator for target_latency_ms.
+    private volatile long downstreamNanos;
+    private volatile long downstreamCount;
+    private long sampledDownstreamNanos;
+    private long sampledDownstreamCount;
+
     SpeedometerSpeedController(PluginTask task, SpeedometerSpeedAggregator aggregator) {
+        this(task, aggregator, SpeedometerClock.SYSTEM);
+    }
+
+    SpeedometerSpeedController(PluginTask task, SpeedometerSpeedAggregator aggregator, SpeedometerClock clock) {
+        this.clock = clock;
         this.limitBytesPerSec = task.getSpeedLimit();
+        this.limitRecordsPerSec = task.getRecordsSpeedLimit();
         this.maxSleepMillisec = task.getMaxSleepMillisec();
         this.logIntervalMillisec = task.getLogIntervalSeconds() * 1000;
+        this.bytesBucket = new SpeedometerTokenBucket(task.getBurstSize());
+        this.recordsBucket = new SpeedometerTokenBucket(0);
+        this.taskStats = task.getTaskStats();
+        this.skewWarningFactor = task.getSkewWarningFactor();
+        this.jmx = task.getJmx();
+        this.metricsPort = task.getMetricsPort();
+        this.metricsBindAddress = task.getMetricsBindAddress().orElse(null);
+        this.metricsFile = task.getMetricsFile().orElse(null);
+        this.targetLatencyNanos = task.getTargetLatencyMs() * 1000000L;
         this.aggregator = aggregator;
     }
 
-    public void start(long nowTime) {
+    public void start() {
         if (startTime == 0) {
-            startTime = nowTime;
-            aggregator.startController(this, startTime);
+            startController(clock.millis());
         }
     }
 
     public void stop() {
+        stopTime = clock.millis();
         startNewPeriod(0);
         aggregator.stopController(this);
     }
@@ -41,6 +95,18 @@ class SpeedometerSpeedController {
         return limitBytesPerSec;
     }
 
+    public long getRecordsSpeedLimit() {
+        return limitRecordsPerSec;
+    }
+
+    void setSpeedLimit(long limitBytesPerSec) {
+        this.limitBytesPerSec = limitBytesPerSec;
+    }
+
+    void setRecordsSpeedLimit(long limitRecordsPerSec) {
+        this.limitRecordsPerSec = limitRecordsPerSec;
+    }
+
     public int getMaxSleepMillisec() {
         return maxSleepMillisec;
     }
@@ -50,11 +116,11 @@ class SpeedometerSpeedController {
     }
 
     public long getTotalBytes() {
-        return threadTotalBytes + periodTotalBytes;
+        return totalBytes;
     }
     
     public long getTotalRecords() {
-        return threadTotalRecords + periodTotalRecords;
+        return totalRecords;
     }
 
     public long getPeriodBytesPerSec(long nowTime) {
@@ -65,15 +131,18 @@ class SpeedometerSpeedController {
         return (periodTotalRecords * 1000) / getTimeDeltaMillisec(nowTime);
     }
 
-    public void checkSpeedLimit(long nowTime, long newDataSize) {
-        checkSpeedLimit(nowTime, newDataSize, false);
+    // The clock is read once for a batch. Times in milliseconds and for the
+    // limit in nanoseconds are calculated from the same value.
+    public void checkSpeedLimitNow(long newDataSize, long newRecords) {
+        long nowNanos = clock.nanoTime();
+        checkSpeedLimit(nowNanos / 1000000L, nowNanos, newDataSize, newRecords);
     }
 
-    public void checkSpeedLimit(long nowTime, long newDataSize, boolean endRecord) {
+    private void checkSpeedLimit(long nowTime, long nowNanos, long newDataSize, long newRecords) {
         if (startTime == 0) {
-            startTime = nowTime;
-            aggregator.startController(this, startTime);
+            startController(nowTime);
         }
+        lastActiveTime = nowTime;
 
         if (renewFlag) {
             renewFlag = false;
@@ -81,29 +150,64 @@ class SpeedometerSpeedController {
         }
 
         periodTotalBytes += newDataSize;
-        if (endRecord) {
-            periodTotalRecords++;
-        }
-        aggregator.checkProgress(nowTime, logIntervalMillisec);
+        periodTotalRecords += newRecords;
+        totalBytes += newDataSize;
+        totalRecords += newRecords;
 
-        if (limitBytesPerSec <= 0) {
+        if (limitBytesPerSec <= 0 && limitRecordsPerSec <= 0) {
             return;
         }
 
-        long speedLimitForThread = aggregator.getSpeedLimitForController(this);
-        long timeDeltaMillisec = nowTime > periodStartTime ? nowTime - periodStartTime : 1;
-        long bytesPerSec = (periodTotalBytes * 1000) / timeDeltaMillisec;
-        long overBytes = bytesPerSec - speedLimitForThread;
-
-        if (overBytes > 0) {
-            try {
-                long sleepTime = (periodTotalBytes * 1000) / speedLimitForThread - timeDeltaMillisec;
-                sleepTime = sleepTime > maxSleepMillisec ? maxSleepMillisec : sleepTime > 0 ? sleepTime : 0;
-                Thread.sleep(sleepTime);
-            } catch (InterruptedException e) {
-                // TODO: Do I need to throw an exception ?
-            }
+        limitedBytes += newDataSize;
+        limitedRecords += newRecords;
+        aggregator.checkRebalance(nowTime);
+
+        // The tighter limit is applied by waiting for the longer time.
+        long waitNanos = 0;
+        if (limitBytesPerSec > 0) {
+            long speedLimitForThread = aggregator.getSpeedLimitForController(this);
+            waitNanos = bytesBucket.consume(nowNanos, newDataSize, speedLimitForThread);
+        }
+        if (limitRecordsPerSec > 0) {
+            long recordsSpeedLimitForThread = aggregator.getRecordsSpeedLimitForController(this);
+            waitNanos = Math.max(waitNanos, recordsBucket.consume(nowNanos, newRecords, recordsSpeedLimitForThread));
         }
+        if (waitNanos > 0) {
+            throttleCount++;
+            throttleNanos += sleepNanos(Math.min(waitNanos, maxSleepMillisec * 1000000L));
+        }
+    }
+
+    long getSpeedLimitShare() {
+        return speedLimitShare;
+    }
+
+    long getRecordsSpeedLimitShare() {
+        return recordsSpeedLimitShare;
+    }
+
+    void setSpeedLimitShare(long speedLimitShare, long recordsSpeedLimitShare) {
+        this.speedLimitShare = speedLimitShare;
+        this.recordsSpeedLimitShare = recordsSpeedLimitShare;
+    }
+
+    // Returns { bytes/s, records/s } since the last call. If this controller
+    // waited for the limit, then Long.MAX_VALUE is returned because it wants more.
+    // This is called by the aggregator while rebalancing.
+    long[] sampleDemand(long timeDeltaMillisec) {
+        long bytes = limitedBytes;
+        long records = limitedRecords;
+        long throttles = throttleCount;
+        long timeDelta = timeDeltaMillisec > 0 ? timeDeltaMillisec : 1;
+        boolean throttled = throttles != sampledThrottleCount;
+        long[] demand = new long[] {
+            throttled ? Long.MAX_VALUE : ((bytes - sampledBytes) * 1000) / timeDelta,
+            throttled ? Long.MAX_VALUE : ((records - sampledRecords) * 1000) / timeDelta,
+        };
+        sampledBytes = bytes;
+        sampledRecords = records;
+        sampledThrottleCount = throttles;
+        return demand;
     }
 
     void renewPeriod() {
@@ -114,18 +218,164 @@ class SpeedometerSpeedController {
         return renewFlag;
     }
 
+    // Thread name of this task like "task-0001".
+    String getName() {
+        return name;
+    }
+
+    // Unique in the aggregator from 1, because thread names may be the same.
+    int getSequence() {
+        return sequence;
+    }
+
+    long getIdleMillisec(long nowTime) {
+        long idleTime = nowTime - lastActiveTime;
+        return idleTime > 0 ? idleTime : 0;
+    }
+
+    boolean isTaskStats() {
+        return taskStats;
+    }
+
+    double getSkewWarningFactor() {
+        return skewWarningFactor;
+    }
+
+    boolean isJmx() {
+        return jmx;
+    }
+
+    int getMetricsPort() {
+        return metricsPort;
+    }
+
+    String getMetricsBindAddress() {
+        return metricsBindAddress;
+    }
+
+    long getTargetLatencyNanos() {
+        return targetLatencyNanos;
+    }
+
+    // Called by the task thread after adding a page to the next plugin.
+    void addDownstreamTime(long nanos) {
+        downstreamNanos += nanos;
+        downstreamCount++;
+    }
+
+    // Returns { nanoseconds, the number of pages } in the next plugin since the last call.
+    // This is called by the aggregator while rebalancing.
+    long[] sampleDownstream() {
+        long nanos = downstreamNanos;
+        long count = downstreamCount;
+        long[] sample = new long[] { nanos - sampledDownstreamNanos, count - sampledDownstreamCount };
+        sampledDownstreamNanos = nanos;
+        sampledDownstreamCount = count;
+        return sample;
+    }
+
+    String getMetricsFile() {
+        return metricsFile;
+    }
+
+    // Time from start to stop, or to now while running.
+    long getElapsedMillisec(long nowTime) {
+        if (startTime == 0) {
+            return 0;
+        }
+        long endTime = stopTime != 0 ? stopTime : nowTime;
+        return Math.max(0, endTime - startTime);
+    }
+
+    long getThrottleCount() {
+        return throttleCount;
+    }
+
+    long getThrottleNanos() {
+        return throttleNanos;
+    }
+
     SpeedometerSpeedAggregator getAggregator() {
         return aggregator;
     }
 
+    SpeedometerClock getClock() {
+        return clock;
+    }
+
+    SpeedometerColumnStats getColumnStats() {
+        return columnStats;
+    }
+
+    // This should be set before start.
+    void setColumnStats(SpeedometerColumnStats columnStats) {
+        this.columnStats = columnStats;
+    }
+
+    SpeedometerLatencyHistogram getUpstreamWaits() {
+        return upstreamWaits;
+    }
+
+    SpeedometerLatencyHistogram getDownstreamBlocks() {
+        return downstreamBlocks;
+    }
+
+    // This should be set before start.
+    void setLatencyHistograms(SpeedometerLatencyHistogram upstreamWaits, SpeedometerLatencyHistogram downstreamBlocks) {
+        this.upstreamWaits = upstreamWaits;
+        this.downstreamBlocks = downstreamBlocks;
+    }
+
+    SpeedometerStageTimes getStageTimes() {
+        return stageTimes;
+    }
+
+    // This should be set before start.
+    void setStageTimes(SpeedometerStageTimes stageTimes) {
+        this.stageTimes = stageTimes;
+    }
+
+    SpeedometerSampleStats getSampleStats() {
+        return sampleStats;
+    }
+
+    // This should be set before start.
+    void setSampleStats(SpeedometerSampleStats sampleStats) {
+        this.sampleStats = sampleStats;
+    }
+
+    private void startController(long nowTime) {
+        startTime = nowTime;
+        lastActiveTime = nowTime;
+        name = Thread.currentThread().getName();
+        sequence = aggregator.nextControllerSequence();
+        aggregator.startController(this, startTime);
+    }
+
     private void startNewPeriod(long newPeriodTime) {
-        threadTotalBytes += periodTotalBytes;
         periodTotalBytes = 0;
-        threadTotalRecords += periodTotalRecords;
         periodTotalRecords = 0;
         periodStartTime = newPeriodTime;
     }
 
+    // parkNanos is used because Thread.sleep is not accurate for less than a millisecond.
+    // Returns the time which was actually slept.
+    private long sleepNanos(long sleepNanos) {
+        long startNanos = clock.nanoTime();
+        long deadline = startNanos + sleepNanos;
+        long remaining = sleepNanos;
+        while (remaining > 0) {
+            clock.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                // NOTE: The interrupt flag is kept, so the next blocking call of
+                // the task like reading input or writing output is interrupted.
+                break;
+            }
+            remaining = deadline - clock.nanoTime();
+        }
+        return clock.nanoTime() - startNanos;
+    }
+
     private long getTimeDeltaMillisec(long nowTime) {
         long timeDeltaMillisec = nowTime - periodStartTime;
         return timeDeltaMillisec <= 0 ? 1 : timeDeltaMillisec;
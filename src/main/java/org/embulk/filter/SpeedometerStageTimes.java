@@ -0,0 +1,87 @@
+package org.embulk.filter;
+
+// Wall time of a task split into stages in nanoseconds. The time of measure
+// is the own overhead of this plugin, and it doesn't include throttle sleeps
+// and the time in the next plugin.
+class SpeedometerStageTimes implements SpeedometerMergeableStats<SpeedometerStageTimes> {
+    static final String UPSTREAM = "upstream";
+    static final String MEASURE = "speedometer";
+    static final String THROTTLE = "throttle";
+    static final String DOWNSTREAM = "downstream";
+
+    private long upstreamWaitNanos;
+    private long measureNanos;
+    private long throttleNanos;
+    private long downstreamNanos;
+
+    void addUpstreamWait(long nanos) {
+        upstreamWaitNanos += Math.max(0, nanos);
+    }
+
+    void addMeasure(long nanos) {
+        measureNanos += Math.max(0, nanos);
+    }
+
+    void addThrottle(long nanos) {
+        throttleNanos += Math.max(0, nanos);
+    }
+
+    void addDownstream(long nanos) {
+        downstreamNanos += Math.max(0, nanos);
+    }
+
+    @Override
+    public void merge(SpeedometerStageTimes other) {
+        upstreamWaitNanos += other.upstreamWaitNanos;
+        measureNanos += other.measureNanos;
+        throttleNanos += other.throttleNanos;
+        downstreamNanos += other.downstreamNanos;
+    }
+
+    @Override
+    public SpeedometerStageTimes copy() {
+        SpeedometerStageTimes times = new SpeedometerStageTimes();
+        times.merge(this);
+        return times;
+    }
+
+    long getUpstreamWaitNanos() {
+        return upstreamWaitNanos;
+    }
+
+    long getMeasureNanos() {
+        return measureNanos;
+    }
+
+    long getThrottleNanos() {
+        return throttleNanos;
+    }
+
+    long getDownstreamNanos() {
+        return downstreamNanos;
+    }
+
+    long getTotalNanos() {
+        return upstreamWaitNanos + measureNanos + throttleNanos + downstreamNanos;
+    }
+
+    double toPercentage(long nanos) {
+        long total = getTotalNanos();
+        return total > 0 ? nanos * 100.0 / total : 0.0;
+    }
+
+    // The stage which takes the most time limits the throughput.
+    String getBottleneck() {
+        long max = Math.max(Math.max(upstreamWaitNanos, measureNanos), Math.max(throttleNanos, downstreamNanos));
+        if (max == 0) {
+            return "none";
+        } else if (max == upstreamWaitNanos) {
+            return UPSTREAM;
+        } else if (max == downstreamNanos) {
+            return DOWNSTREAM;
+        } else if (max == throttleNanos) {
+            return THROTTLE;
+        }
+        return MEASURE;
+    }
+}
@@ -0,0 +1,131 @@
+package org.embulk.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+// Calculate a size of string text. If no charset is set, then the size is
+// the number of chars like before. UTF-8 and UTF-16 are calculated from chars.
+// Other charsets are encoded into a reused buffer to count bytes.
+class SpeedometerStringLength {
+    private static final int CHARS = 0;
+    private static final int UTF_8 = 1;
+    private static final int UTF_16 = 2;
+    private static final int SINGLE_BYTE = 3;
+    private static final int ENCODER = 4;
+
+    private static final int ENCODE_BUFFER_SIZE = 1024;
+
+    private final int type;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer encodeBuffer;
+
+    static SpeedometerStringLength of(Optional<String> charsetName) {
+        return new SpeedometerStringLength(charsetName.isPresent() ? Charset.forName(charsetName.get()) : null);
+    }
+
+    SpeedometerStringLength(Charset charset) {
+        if (charset == null) {
+            type = CHARS;
+        } else if (charset.equals(StandardCharsets.UTF_8)) {
+            type = UTF_8;
+        } else if (charset.equals(StandardCharsets.UTF_16) || charset.equals(StandardCharsets.UTF_16BE) || charset.equals(StandardCharsets.UTF_16LE)) {
+            type = UTF_16; // Note: A byte order mark is not counted for each value.
+        } else if (charset.newEncoder().maxBytesPerChar() == 1.0f) {
+            type = SINGLE_BYTE;
+        } else {
+            type = ENCODER;
+        }
+
+        if (type == ENCODER) {
+            encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encodeBuffer = ByteBuffer.allocate(ENCODE_BUFFER_SIZE);
+        } else {
+            encoder = null;
+            encodeBuffer = null;
+        }
+    }
+
+    long length(String s) {
+        switch (type) {
+        case UTF_8:
+            return toUtf8Length(s);
+        case UTF_16:
+            return 2L * s.length();
+        case SINGLE_BYTE:
+            return toCodePointLength(s);
+        case ENCODER:
+            return toEncodedLength(s);
+        default:
+            return s.length();
+        }
+    }
+
+    // Used for a constant text like delimiter.
+    int lengthOfConstant(String s) {
+        return (int) length(s);
+    }
+
+    // Same as s.getBytes(StandardCharsets.UTF_8).length. A malformed surrogate is replaced with '?'.
+    static long toUtf8Length(String s) {
+        long length = 0;
+        int size = s.length();
+        for (int i = 0; i < size; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 < size && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length++;
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // A single byte charset writes a replacement byte for a surrogate pair.
+    private static long toCodePointLength(String s) {
+        long length = s.length();
+        for (int i = 0; i + 1 < s.length(); i++) {
+            if (Character.isHighSurrogate(s.charAt(i)) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length--;
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private long toEncodedLength(String s) {
+        CharBuffer in = CharBuffer.wrap(s);
+        long length = 0;
+        CoderResult result;
+        encoder.reset();
+        do {
+            result = encoder.encode(in, encodeBuffer, true);
+            length += encodeBuffer.position();
+            encodeBuffer.clear();
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(encodeBuffer);
+            length += encodeBuffer.position();
+            encodeBuffer.clear();
+        } while (result.isOverflow());
+        return length;
+    }
+}
@@ -0,0 +1,271 @@
+package org.embulk.filter;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+
+import org.embulk.util.timestamp.TimestampFormatter;
+
+// Calculate a length of formatted timestamp text without formatting it.
+// A format is analyzed once. If the format has only fixed width directives,
+// then the length is a constant. Month names, day names and epoch seconds are
+// calculated from the instant. Other formats fall back to the formatter and the
+// last result is cached.
+class SpeedometerTimestampLength {
+    private static final String RUBY_PREFIX = "ruby:";
+    private static final String JAVA_PREFIX = "java:";
+    private static final int[] MONTH_NAME_LENGTHS = { 7, 8, 5, 5, 3, 4, 4, 6, 9, 7, 8, 8 }; // January to December
+    private static final int[] DAY_NAME_LENGTHS = { 6, 6, 7, 9, 8, 6, 8 }; // Sunday to Saturday
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    // Years in this range are always written in 4 digits. A day is added to
+    // the both sides because of time zone offsets.
+    private static final long MIN_FIXED_YEAR_EPOCH_SECOND = (LocalDate.of(1001, 1, 1).toEpochDay() + 1) * SECONDS_PER_DAY;
+    private static final long MAX_FIXED_YEAR_EPOCH_SECOND = (LocalDate.of(9999, 1, 1).toEpochDay() - 1) * SECONDS_PER_DAY;
+
+    private final TimestampFormatter formatter;
+    private final boolean analyzed;
+    private final int constantLength;
+    private final int monthNameCount;
+    private final int dayNameCount;
+    private final int epochSecondCount;
+    private final ZoneRules zoneRules;
+    private final boolean fixedOffset;
+    private final int fixedOffsetSeconds;
+
+    private long lastEpochSecond;
+    private int lastNano;
+    private int lastLength = -1;
+
+    static SpeedometerTimestampLength of(String format, String zoneId, TimestampFormatter formatter) {
+        return new SpeedometerTimestampLength(format, zoneId, formatter);
+    }
+
+    SpeedometerTimestampLength(String format, String zoneId, TimestampFormatter formatter) {
+        this.formatter = formatter;
+
+        int[] counts = analyzeFormat(format);
+        ZoneRules rules = null;
+        if (counts != null && (counts[1] > 0 || counts[2] > 0)) {
+            rules = toZoneRules(zoneId);
+            if (rules == null) {
+                counts = null; // Names depend on the zone, but the zone is unknown.
+            }
+        }
+
+        if (counts != null) {
+            analyzed = true;
+            constantLength = counts[0];
+            monthNameCount = counts[1];
+            dayNameCount = counts[2];
+            epochSecondCount = counts[3];
+        } else {
+            analyzed = false;
+            constantLength = 0;
+            monthNameCount = 0;
+            dayNameCount = 0;
+            epochSecondCount = 0;
+        }
+        zoneRules = rules;
+        fixedOffset = rules != null && rules.isFixedOffset();
+        fixedOffsetSeconds = fixedOffset ? rules.getOffset(Instant.EPOCH).getTotalSeconds() : 0;
+    }
+
+    int length(Instant t) {
+        long epochSecond = t.getEpochSecond();
+        if (analyzed && MIN_FIXED_YEAR_EPOCH_SECOND <= epochSecond && epochSecond < MAX_FIXED_YEAR_EPOCH_SECOND) {
+            int length = constantLength;
+            if (monthNameCount > 0 || dayNameCount > 0) {
+                long localDays = Math.floorDiv(epochSecond + getOffsetSeconds(t), SECONDS_PER_DAY);
+                if (monthNameCount > 0) {
+                    length += monthNameCount * MONTH_NAME_LENGTHS[toMonth(localDays) - 1];
+                }
+                if (dayNameCount > 0) {
+                    length += dayNameCount * DAY_NAME_LENGTHS[(int) Math.floorMod(localDays + 4, 7)]; // 1970-01-01 is Thursday.
+                }
+            }
+            if (epochSecondCount > 0) {
+                length += epochSecondCount * SpeedometerUtil.toDigitsTextLength(epochSecond);
+            }
+            return length;
+        }
+
+        int nano = t.getNano();
+        if (lastLength < 0 || lastEpochSecond != epochSecond || lastNano != nano) {
+            lastLength = formatter.format(t).length();
+            lastEpochSecond = epochSecond;
+            lastNano = nano;
+        }
+        return lastLength;
+    }
+
+    boolean isAnalyzed() {
+        return analyzed;
+    }
+
+    boolean isConstant() {
+        return analyzed && monthNameCount == 0 && dayNameCount == 0 && epochSecondCount == 0;
+    }
+
+    private int getOffsetSeconds(Instant t) {
+        return fixedOffset ? fixedOffsetSeconds : zoneRules.getOffset(t).getTotalSeconds();
+    }
+
+    // Returns { constant length, month name count, day name count, epoch second count }
+    // or null if the format has a directive which is not supported here.
+    static int[] analyzeFormat(String format) {
+        if (format.startsWith(RUBY_PREFIX)) {
+            format = format.substring(RUBY_PREFIX.length());
+        } else if (format.startsWith(JAVA_PREFIX)) {
+            return null;
+        }
+
+        int[] counts = new int[4];
+        int i = 0;
+        while (i < format.length()) {
+            char c = format.charAt(i++);
+            if (c != '%') {
+                counts[0]++;
+                continue;
+            }
+
+            int width = 0;
+            boolean hasWidth = false;
+            while (i < format.length() && Character.isDigit(format.charAt(i))) {
+                width = width * 10 + (format.charAt(i++) - '0');
+                hasWidth = true;
+            }
+            int colons = 0;
+            while (i < format.length() && format.charAt(i) == ':') {
+                colons++;
+                i++;
+            }
+            if (i >= format.length()) {
+                return null;
+            }
+
+            char conversion = format.charAt(i++);
+            if (hasWidth && (conversion != 'N' && conversion != 'L' || colons > 0 || width == 0)) {
+                return null;
+            }
+            if (colons > 0 && conversion != 'z') {
+                return null;
+            }
+
+            switch (conversion) {
+            case 'B':
+                counts[1]++;
+                break;
+            case 'A':
+                counts[2]++;
+                break;
+            case 's':
+                counts[3]++;
+                break;
+            case 'N':
+                counts[0] += hasWidth ? width : 9;
+                break;
+            case 'L':
+                counts[0] += hasWidth ? width : 3;
+                break;
+            case 'z':
+                if (colons > 2) {
+                    return null;
+                }
+                counts[0] += colons == 0 ? 5 : colons == 1 ? 6 : 9; // +0900, +09:00 or +09:00:00
+                break;
+            default:
+                int length = toFixedDirectiveLength(conversion);
+                if (length < 0) {
+                    return null;
+                }
+                counts[0] += length;
+            }
+        }
+        return counts;
+    }
+
+    // Lengths for years from 1001 to 9998.
+    private static int toFixedDirectiveLength(char conversion) {
+        switch (conversion) {
+        case '%':
+        case 'n':
+        case 't':
+        case 'u':
+        case 'w':
+            return 1;
+        case 'C':
+        case 'y':
+        case 'g':
+        case 'm':
+        case 'd':
+        case 'e':
+        case 'H':
+        case 'k':
+        case 'I':
+        case 'l':
+        case 'M':
+        case 'S':
+        case 'p':
+        case 'P':
+        case 'U':
+        case 'W':
+        case 'V':
+            return 2;
+        case 'j':
+        case 'a':
+        case 'b':
+        case 'h':
+            return 3;
+        case 'Y':
+        case 'G':
+            return 4;
+        case 'R':
+            return 5; // %H:%M
+        case 'D':
+        case 'x':
+        case 'T':
+        case 'X':
+            return 8; // %m/%d/%y or %H:%M:%S
+        case 'F':
+            return 10; // %Y-%m-%d
+        case 'r':
+        case 'v':
+            return 11; // %I:%M:%S %p or %e-%b-%Y
+        case 'c':
+            return 24; // %a %b %e %H:%M:%S %Y
+        default:
+            return -1;
+        }
+    }
+
+    // Abbreviations like "JST" or "CET" are not used because Ruby style formatter
+    // may not interpret them in the same way as java.time.
+    private static ZoneRules toZoneRules(String zoneId) {
+        if (zoneId == null) {
+            return null;
+        }
+        if (!zoneId.equals("UTC") && !zoneId.equals("Z") && zoneId.indexOf('/') < 0
+                && !zoneId.startsWith("+") && !zoneId.startsWith("-")) {
+            return null;
+        }
+        try {
+            return ZoneId.of(zoneId).getRules();
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    // See "days_from_civil" and "civil_from_days" by Howard Hinnant.
+    private static int toMonth(long epochDays) {
+        long z = epochDays + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        return (int) (mp < 10 ? mp + 3 : mp - 9);
+    }
+}
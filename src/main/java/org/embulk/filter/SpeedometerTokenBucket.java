@@ -0,0 +1,44 @@
+package org.embulk.filter;
+
+// A token bucket to keep a speed limit. Tokens are refilled by the elapsed
+// nanoseconds and the bucket can hold burstSize tokens at most. If tokens are
+// not enough, then the bucket borrows them and returns the time to wait until
+// the borrowed tokens are refilled.
+class SpeedometerTokenBucket {
+    private static final double NANOS_PER_SEC = 1000000000.0;
+
+    private final long burstSize;
+    private double tokens;
+    private long lastRefillNanos;
+    private boolean started;
+
+    SpeedometerTokenBucket(long burstSize) {
+        this.burstSize = burstSize;
+    }
+
+    // Returns nanoseconds to wait. If burstSize is 0, then one second of the rate is used.
+    public long consume(long nowNanos, long size, long ratePerSec) {
+        long rate = ratePerSec > 0 ? ratePerSec : 1;
+        long capacity = burstSize > 0 ? burstSize : rate;
+
+        if (!started) {
+            started = true;
+            tokens = capacity;
+        } else if (nowNanos > lastRefillNanos) {
+            // NOTE: Calculate in double. A product of long values overflows after a long idle time at a high rate.
+            tokens = Math.min(capacity, tokens + (nowNanos - lastRefillNanos) / NANOS_PER_SEC * rate);
+        }
+        lastRefillNanos = nowNanos;
+
+        tokens -= size;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * NANOS_PER_SEC / rate);
+    }
+
+    long getBurstSize() {
+        return burstSize;
+    }
+
+    double getTokens() {
+        return tokens;
+    }
+}
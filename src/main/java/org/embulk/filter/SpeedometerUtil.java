@@ -1,9 +1,27 @@
 package org.embulk.filter;
 
 import java.text.NumberFormat;
+import java.util.Map;
+
+import org.embulk.spi.json.JsonArray;
+import org.embulk.spi.json.JsonObject;
+import org.embulk.spi.json.JsonValue;
 
 public class SpeedometerUtil {
     private static final int MIN_LENGTH = String.valueOf(Long.MIN_VALUE).length();
+    private static final int NAN_LENGTH = String.valueOf(Double.NaN).length();
+    private static final int POSITIVE_INFINITY_LENGTH = String.valueOf(Double.POSITIVE_INFINITY).length();
+    private static final int NEGATIVE_INFINITY_LENGTH = String.valueOf(Double.NEGATIVE_INFINITY).length();
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    }; // Note: These are exact values in double.
+    private static final double MAX_EXACT_DIGITS = 9007199254740992.0; // 2^53
+    private static final int MIN_DOUBLE_EXPONENT = -6;
+    private static final int MAX_DOUBLE_EXPONENT = 15;
+    private static final int JSON_NULL_LENGTH = "null".length();
+    private static final int JSON_TRUE_LENGTH = "true".length();
+    private static final int JSON_FALSE_LENGTH = "false".length();
 
     public static String toByteText(long originalNum) {
         long baseNum = 1000;
@@ -68,6 +86,18 @@ public class SpeedometerUtil {
         return String.format("%1d days", num);
     }
 
+    public static String toLatencyText(long nanos) {
+        if (nanos < 1000L) {
+            return String.format("%dns", nanos);
+        } else if (nanos < 1000000L) {
+            return String.format("%.1fus", nanos / 1000.0);
+        } else if (nanos < 1000000000L) {
+            return String.format("%.1fms", nanos / 1000000.0);
+        } else {
+            return String.format("%.2fs", nanos / 1000000000.0);
+        }
+    }
+
     public static int toDigitsTextLength(long num) {
         if (num == 0) {
             return 1;
@@ -79,4 +109,135 @@ public class SpeedometerUtil {
             return 1 + (int)Math.log10(num);
         }
     }
+
+    // Same length as String.valueOf(double) without building the text.
+    // The shortest digits are searched by checking m * 10^s == num with exact
+    // powers of ten. Values which cannot be checked in double arithmetic like
+    // very large or small exponents fall back to String.valueOf().
+    public static int toDoubleTextLength(double num) {
+        if (Double.isNaN(num)) {
+            return NAN_LENGTH;
+        } else if (Double.isInfinite(num)) {
+            return num > 0 ? POSITIVE_INFINITY_LENGTH : NEGATIVE_INFINITY_LENGTH;
+        }
+
+        int signLength = Double.doubleToRawLongBits(num) < 0 ? 1 : 0;
+        double abs = Math.abs(num);
+        if (abs == 0) {
+            return signLength + 3; // 0.0
+        }
+
+        int exponent = (int) Math.floor(Math.log10(abs));
+        if (exponent < MIN_DOUBLE_EXPONENT || exponent > MAX_DOUBLE_EXPONENT) {
+            return String.valueOf(num).length();
+        }
+
+        // Search from fewer digits. The largest scale gives the shortest digits.
+        for (int scale = exponent + 1; scale >= exponent - 15; scale--) {
+            double estimate = scale >= 0 ? abs / POWERS_OF_TEN[scale] : abs * POWERS_OF_TEN[-scale];
+            double rounded = Math.rint(estimate);
+            if (rounded + 1 >= MAX_EXACT_DIGITS) {
+                return String.valueOf(num).length();
+            }
+            for (double digits = rounded - 1; digits <= rounded + 1; digits++) {
+                if (digits >= 1 && isExactScaledValue(digits, scale, abs)) {
+                    int digitsLength = toDigitsTextLength((long) digits);
+                    return signLength + toDoubleTextLength(digitsLength, scale + digitsLength - 1);
+                }
+            }
+        }
+
+        // 16 digits were checked, so this needs 17 digits. But the exponent
+        // from log10 may be wrong near a power of ten.
+        double ratio = abs / Math.pow(10, exponent);
+        if (ratio < 1.000000000000001 || ratio > 9.99999999999999) {
+            return String.valueOf(num).length();
+        }
+        return signLength + toDoubleTextLength(17, exponent);
+    }
+
+    private static boolean isExactScaledValue(double digits, int scale, double expected) {
+        if (scale >= 0) {
+            return digits * POWERS_OF_TEN[scale] == expected;
+        } else {
+            return digits / POWERS_OF_TEN[-scale] == expected;
+        }
+    }
+
+    // See the format of Double.toString(double).
+    private static int toDoubleTextLength(int digitsLength, int decimalExponent) {
+        if (decimalExponent >= 0 && decimalExponent < 7) {
+            int integerLength = decimalExponent + 1;
+            return integerLength + 1 + Math.max(1, digitsLength - integerLength); // ddd.ddd
+        } else if (decimalExponent < 0 && decimalExponent >= -3) {
+            return 2 + (-decimalExponent - 1) + digitsLength; // 0.00ddd
+        } else {
+            int exponentLength = toDigitsTextLength(decimalExponent);
+            return 1 + 1 + Math.max(1, digitsLength - 1) + 1 + exponentLength; // d.dddE-dd
+        }
+    }
+
+    // Same length as JsonValue.toJson() without building the text.
+    // NOTE: A number or a string created with a literal is counted by its normalized form.
+    public static long toJsonTextLength(JsonValue value) {
+        switch (value.getEntityType()) {
+        case NULL:
+            return JSON_NULL_LENGTH;
+        case BOOLEAN:
+            return value.asJsonBoolean().booleanValue() ? JSON_TRUE_LENGTH : JSON_FALSE_LENGTH;
+        case LONG:
+            return toDigitsTextLength(value.asJsonLong().longValue());
+        case DOUBLE:
+            return toDoubleTextLength(value.asJsonDouble().doubleValue());
+        case STRING:
+            return toJsonStringTextLength(value.asJsonString().getString());
+        case ARRAY:
+            return toJsonArrayTextLength(value.asJsonArray());
+        case OBJECT:
+            return toJsonObjectTextLength(value.asJsonObject());
+        default:
+            String s = value.toJson();
+            return s != null ? s.length() : 0;
+        }
+    }
+
+    public static long toJsonStringTextLength(String s) {
+        long length = 2; // Note: quotes are added.
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+            case '\\':
+            case '\b':
+            case '\t':
+            case '\n':
+            case '\f':
+            case '\r':
+                length += 2;
+                break;
+            default:
+                length += c < 0x20 ? 6 : 1; // Note: other control characters use 6 characters.
+            }
+        }
+        return length;
+    }
+
+    private static long toJsonArrayTextLength(JsonArray array) {
+        int size = array.size();
+        long length = size > 0 ? 2 + size - 1 : 2; // Note: brackets and commas.
+        for (int i = 0; i < size; i++) {
+            length += toJsonTextLength(array.get(i));
+        }
+        return length;
+    }
+
+    private static long toJsonObjectTextLength(JsonObject object) {
+        int size = object.size();
+        long length = size > 0 ? 2 + size - 1 + size : 2; // Note: braces, commas and colons.
+        for (Map.Entry<String, JsonValue> entry : object.entrySet()) {
+            length += toJsonStringTextLength(entry.getKey());
+            length += toJsonTextLength(entry.getValue());
+        }
+        return length;
+    }
 }
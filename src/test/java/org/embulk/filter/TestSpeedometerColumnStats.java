@@ -0,0 +1,52 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestSpeedometerColumnStats {
+    @Test
+    public void testAdd() {
+        SpeedometerColumnStats stats = new SpeedometerColumnStats(new String[] { "a", "b" }, true);
+        stats.add(0, 3);
+        stats.add(0, 5);
+        stats.addNull(0);
+        stats.addNull(1);
+
+        assertEquals("Verify column count.", 2, stats.getColumnCount());
+        assertEquals("Verify column name.", "b", stats.getName(1));
+        assertEquals("Verify bytes.", 8, stats.getBytes(0));
+        assertEquals("Verify non-null count.", 2, stats.getNonNullCount(0));
+        assertEquals("Verify null count.", 1, stats.getNullCount(0));
+        assertEquals("Verify max size.", 5, stats.getMaxSize(0));
+        assertEquals("Verify a null column has no bytes.", 0, stats.getBytes(1));
+        assertTrue("Verify each interval flag.", stats.isEachInterval());
+    }
+
+    @Test
+    public void testMergeAndCopy() {
+        SpeedometerColumnStats stats = new SpeedometerColumnStats(new String[] { "a" }, false);
+        SpeedometerColumnStats other = new SpeedometerColumnStats(new String[] { "a" }, false);
+        stats.add(0, 3);
+        other.add(0, 7);
+        other.addNull(0);
+
+        SpeedometerColumnStats copy = stats.copy();
+        copy.merge(other);
+        assertEquals("Verify merged bytes.", 10, copy.getBytes(0));
+        assertEquals("Verify merged non-null count.", 2, copy.getNonNullCount(0));
+        assertEquals("Verify merged null count.", 1, copy.getNullCount(0));
+        assertEquals("Verify merged max size.", 7, copy.getMaxSize(0));
+        assertEquals("Verify the original is not changed.", 3, stats.getBytes(0));
+    }
+
+    @Test
+    public void testMergeDifferentSchema() {
+        SpeedometerColumnStats stats = new SpeedometerColumnStats(new String[] { "a" }, false);
+        SpeedometerColumnStats other = new SpeedometerColumnStats(new String[] { "a", "b" }, false);
+        other.add(0, 7);
+        stats.merge(other);
+        assertEquals("Verify stats of a different schema are not merged.", 0, stats.getBytes(0));
+    }
+}
@@ -1,12 +1,21 @@
 package org.embulk.filter;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Optional;
+
 import mockit.Expectations;
 import mockit.Mocked;
 import mockit.Verifications;
+import mockit.VerificationsInOrder;
 
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
 import org.embulk.filter.SpeedometerFilterPlugin.PluginTask;
+import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.ColumnVisitor;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FilterPlugin;
@@ -54,13 +63,65 @@ public class TestSpeedometerFilterPlugin
         SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
         new Expectations(plugin) {{
             plugin.getTask(config); result = task;
+            task.getMeasure(); result = "text";
         }};
 
         plugin.transaction(config, schema, control);
 
         new Verifications() {{
+            String aggregatorId;
+            task.setAggregatorId(aggregatorId = withCapture()); times = 1;
             control.run((TaskSource)any, schema); times = 1;
+            assertFalse("Verify the aggregator is removed after the run.", SpeedometerSpeedAggregator.hasInstance(aggregatorId));
+        }};
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testTransactionWithUnknownMeasure() {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(config); result = task;
+            task.getMeasure(); result = "logical";
+        }};
+
+        plugin.transaction(config, schema, control);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testTransactionWithTargetLatencyWithoutSpeedLimit() {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(config); result = task;
+            task.getMeasure(); result = "text";
+            task.getTargetLatencyMs(); result = 200;
+            task.getSpeedLimit(); result = 0;
         }};
+
+        plugin.transaction(config, schema, control);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testTransactionWithUnknownCharset() {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(config); result = task;
+            task.getMeasure(); result = "text";
+            task.getCharset(); result = Optional.of("no-such-charset");
+        }};
+
+        plugin.transaction(config, schema, control);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testTransactionWithDecodeOnlyCharset() {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(config); result = task;
+            task.getMeasure(); result = "text";
+            task.getCharset(); result = Optional.of("ISO-2022-CN");
+        }};
+
+        plugin.transaction(config, schema, control);
     }
 
     @Test
@@ -86,18 +147,120 @@ public class TestSpeedometerFilterPlugin
     }
 
     @Test
-    public void testFinish() throws Exception {
+    public void testOpenFailureReleasesAggregator(@Mocked final SpeedometerSpeedAggregator aggregator) throws Exception {
         SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
         new Expectations(plugin) {{
             plugin.getTask(taskSource); result = task;
             task.getDelimiter(); result = "";
+            SpeedometerSpeedAggregator.getInstance(task); result = aggregator;
+            Exec.getPageReader(schema); result = new IllegalStateException("failed to open");
+        }};
+
+        try {
+            plugin.open(taskSource, schema, schema, inPageOutput);
+        } catch (IllegalStateException e) {
+            assertEquals("Verify the failure is thrown.", "failed to open", e.getMessage());
+        }
+
+        new Verifications() {{
+            aggregator.releaseIfIdle(); times = 1;
+            aggregator.startController((SpeedometerSpeedController) any, anyLong); times = 0;
+        }};
+    }
+
+    @Test
+    public void testAddChecksSpeedLimitOncePerPage(@Mocked final SpeedometerSpeedController controller) throws Exception {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+            task.getRecordPaddingSize(); result = 1;
+            task.getBatchRecords(); result = 0;
+            reader.nextRecord(); result = true; result = true; result = false;
+            Exec.getPageReader(schema); result = reader;
+        }};
+
+        PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.add(page);
+
+        new Verifications() {{
+            controller.checkSpeedLimitNow(2L, 2L); times = 1;
+        }};
+    }
+
+    @Test
+    public void testAddChecksSpeedLimitPerBatch(@Mocked final SpeedometerSpeedController controller) throws Exception {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+            task.getRecordPaddingSize(); result = 1;
+            task.getBatchRecords(); result = 2;
+            reader.nextRecord(); result = true; result = true; result = true; result = false;
+            Exec.getPageReader(schema); result = reader;
+        }};
+
+        PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.add(page);
+
+        new Verifications() {{
+            controller.checkSpeedLimitNow(2L, 2L); times = 1;
+            controller.checkSpeedLimitNow(1L, 1L); times = 1;
+        }};
+    }
+
+    @Test
+    public void testAddWithPassThrough() throws Exception {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+            task.getPassThrough(); result = true;
+            reader.nextRecord(); result = true; result = false;
+            Exec.getPageReader(schema); result = reader;
         }};
 
         PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.add(page);
         output.finish();
+        output.close();
+
+        new Verifications() {{
+            Exec.getPageBuilder((BufferAllocator)any, (Schema)any, (PageOutput)any); times = 0;
+            reader.setPage(withInstanceOf(SpeedometerFilterPlugin.BorrowedPage.class)); times = 1;
+            schema.visitColumns(withInstanceOf(ColumnVisitor.class)); times = 1;
+            inPageOutput.add(page); times = 1;
+            inPageOutput.finish(); times = 1;
+            inPageOutput.close(); times = 1;
+        }};
+    }
+
+    @Test
+    public void testBorrowedPageDoesNotReleasePage() throws Exception {
+        Page borrowedPage = new SpeedometerFilterPlugin.BorrowedPage(page);
+        borrowedPage.release();
+        borrowedPage.buffer();
 
         new Verifications() {{
+            page.release(); times = 0;
+            page.buffer(); times = 1;
+        }};
+    }
+
+    @Test
+    public void testFinish(@Mocked final SpeedometerSpeedController controller) throws Exception {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+        }};
+
+        PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.finish();
+
+        new VerificationsInOrder() {{
             builder.finish(); times = 1;
+            controller.stop(); times = 1;
         }};
     }
 
@@ -116,4 +279,133 @@ public class TestSpeedometerFilterPlugin
             builder.close(); times = 1;
         }};
     }
+
+    @Test
+    public void testTimedPageOutput() {
+        final long[] nowNanos = { 0 };
+        SpeedometerLatencyHistogram downstreamBlocks = new SpeedometerLatencyHistogram();
+        PageOutput output = new SpeedometerFilterPlugin.SpeedControlPageOutput.TimedPageOutput(inPageOutput, downstreamBlocks, null, null, () -> nowNanos[0] += 5);
+        output.add(page);
+        output.finish();
+        output.close();
+
+        assertEquals("Verify a downstream block is recorded.", 1, downstreamBlocks.getTotalCount());
+        assertEquals("Verify time to add a page.", 5, downstreamBlocks.getMaxValue());
+        new Verifications() {{
+            inPageOutput.add(page); times = 1;
+            inPageOutput.finish(); times = 1;
+            inPageOutput.close(); times = 1;
+        }};
+    }
+
+    @Test
+    public void testAddWithLatencyStats(@Mocked final SpeedometerSpeedController controller) throws Exception {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+            task.getLatencyStats(); result = true;
+            task.getPassThrough(); result = true;
+            reader.nextRecord(); result = false;
+            Exec.getPageReader(schema); result = reader;
+        }};
+
+        PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.add(page);
+
+        new Verifications() {{
+            SpeedometerLatencyHistogram upstreamWaits;
+            SpeedometerLatencyHistogram downstreamBlocks;
+            controller.setLatencyHistograms(upstreamWaits = withCapture(), downstreamBlocks = withCapture()); times = 1;
+            assertEquals("Verify an upstream wait is recorded.", 1, upstreamWaits.getTotalCount());
+            assertEquals("Verify a downstream block is recorded.", 1, downstreamBlocks.getTotalCount());
+            inPageOutput.add(page); times = 1;
+        }};
+    }
+
+    @Test
+    public void testAddWithStageStats(@Mocked final SpeedometerSpeedController controller) throws Exception {
+        final long[] nowNanos = { 0 };
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+            task.getStageStats(); result = true;
+            task.getPassThrough(); result = true;
+            controller.getClock(); result = (SpeedometerClock) () -> nowNanos[0] += 10;
+            controller.getThrottleNanos(); result = 0;
+            reader.nextRecord(); result = false;
+            Exec.getPageReader(schema); result = reader;
+        }};
+
+        PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.add(page);
+
+        new Verifications() {{
+            SpeedometerStageTimes stageTimes;
+            controller.setStageTimes(stageTimes = withCapture()); times = 1;
+            controller.setLatencyHistograms((SpeedometerLatencyHistogram) any, (SpeedometerLatencyHistogram) any); times = 0;
+            assertEquals("Verify an upstream wait is recorded.", 10, stageTimes.getUpstreamWaitNanos());
+            assertEquals("Verify time in the next plugin.", 10, stageTimes.getDownstreamNanos());
+            assertEquals("Verify time of this plugin.", 20, stageTimes.getMeasureNanos());
+            inPageOutput.add(page); times = 1;
+        }};
+    }
+
+    @Test
+    @SuppressWarnings("deprecation") // Page has no other way to get references.
+    public void testAddWithPhysicalMeasure(@Mocked final SpeedometerSpeedController controller) throws Exception {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+            task.getMeasure(); result = "physical";
+            task.getPassThrough(); result = false;
+            Exec.getPageReader(schema); result = reader;
+            PageReader.getRecordCount(page); result = 3;
+            page.buffer().limit(); result = 100;
+            page.getStringReferences(); result = Arrays.asList("abc", "de");
+            page.getValueReferences(); result = null;
+        }};
+
+        PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.add(page);
+        output.finish();
+
+        new Verifications() {{
+            controller.checkSpeedLimitNow(100 + 2 * SpeedometerPageSize.STRING_SIZE, 3); times = 1;
+            reader.nextRecord(); times = 0;
+            Exec.getPageBuilder((BufferAllocator) any, schema, (PageOutput) any); times = 0;
+            inPageOutput.add(page); times = 1;
+            inPageOutput.finish(); times = 1;
+        }};
+    }
+
+    @Test
+    public void testAddWithSampleRate(@Mocked final SpeedometerSpeedController controller) throws Exception {
+        SpeedometerFilterPlugin plugin = new SpeedometerFilterPlugin();
+        new Expectations(plugin) {{
+            plugin.getTask(taskSource); result = task;
+            task.getDelimiter(); result = "";
+            task.getRecordPaddingSize(); result = 10;
+            task.getBatchRecords(); result = 0;
+            task.getSampleRate(); result = 2;
+            reader.nextRecord(); result = true; result = true; result = true; result = true; result = false;
+            Exec.getPageReader(schema); result = reader;
+            Exec.getPageBuilder((BufferAllocator) any, schema, (PageOutput) any); result = builder;
+        }};
+
+        PageOutput output = plugin.open(taskSource, schema, schema, inPageOutput);
+        output.add(page);
+
+        new Verifications() {{
+            SpeedometerSampleStats sampleStats;
+            controller.setSampleStats(sampleStats = withCapture()); times = 1;
+            assertEquals("Verify all records are counted.", 4, sampleStats.getSampledCount() + sampleStats.getSkippedCount());
+            assertEquals("Verify 1 in 2 records are sampled at least.", true, sampleStats.getSampledCount() >= 2);
+            controller.checkSpeedLimitNow(40, 4); times = 1;
+            schema.visitColumns((ColumnVisitor) any); times = 4;
+            builder.addRecord(); times = 4;
+        }};
+    }
 }
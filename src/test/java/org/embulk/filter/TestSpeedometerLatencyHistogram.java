@@ -0,0 +1,61 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSpeedometerLatencyHistogram {
+    @Test
+    public void testBuckets() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int index = SpeedometerLatencyHistogram.toIndex(value);
+            long upperBound = SpeedometerLatencyHistogram.toUpperBound(index);
+            assertTrue("Verify upper bound of " + value, value <= upperBound);
+            assertTrue("Verify precision of " + value, upperBound - value <= value / 8);
+            if (index > 0) {
+                assertTrue("Verify previous bucket of " + value, SpeedometerLatencyHistogram.toUpperBound(index - 1) < value);
+            }
+        }
+        assertEquals("Verify max value bucket.", Long.MAX_VALUE,
+                SpeedometerLatencyHistogram.toUpperBound(SpeedometerLatencyHistogram.toIndex(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testGetPercentile() {
+        SpeedometerLatencyHistogram histogram = new SpeedometerLatencyHistogram();
+        assertEquals("Verify empty histogram.", 0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.record(-1);
+
+        assertEquals("Verify total count.", 101, histogram.getTotalCount());
+        assertEquals("Verify max value.", 100000, histogram.getMaxValue());
+        assertEquals("Verify max percentile is max value.", 100000, histogram.getPercentile(100));
+        long p50 = histogram.getPercentile(50);
+        assertTrue("Verify p50 " + p50, 50000 <= p50 && p50 <= 50000 * 9 / 8);
+        long p99 = histogram.getPercentile(99);
+        assertTrue("Verify p99 " + p99, 99000 <= p99 && p99 <= 100000);
+    }
+
+    @Test
+    public void testMergeAndCopy() {
+        SpeedometerLatencyHistogram histogram = new SpeedometerLatencyHistogram();
+        SpeedometerLatencyHistogram other = new SpeedometerLatencyHistogram();
+        histogram.record(5);
+        other.record(7);
+        other.record(3000);
+
+        SpeedometerLatencyHistogram copy = histogram.copy();
+        copy.merge(other);
+        assertEquals("Verify merged count.", 3, copy.getTotalCount());
+        assertEquals("Verify merged max.", 3000, copy.getMaxValue());
+        assertEquals("Verify merged p50.", 7, copy.getPercentile(50));
+        assertEquals("Verify the original is not changed.", 1, histogram.getTotalCount());
+    }
+}
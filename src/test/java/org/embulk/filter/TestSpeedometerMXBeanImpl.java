@@ -0,0 +1,122 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+
+public class TestSpeedometerMXBeanImpl {
+    @Mocked SpeedometerSpeedController controller;
+
+    @Test
+    public void testRegisterWithFirstController() throws Exception {
+        new Expectations() {{
+            controller.isJmx(); result = true;
+            controller.getUpstreamWaits(); result = null;
+            controller.getStageTimes(); result = null;
+            controller.getSampleStats(); result = null;
+            controller.getTotalBytes(); result = 100;
+            controller.getTotalRecords(); result = 10;
+            controller.getPeriodBytesPerSec(anyLong); result = 30;
+            controller.getPeriodRecordsPerSec(anyLong); result = 3;
+            controller.getName(); result = "task-0001";
+            controller.getSequence(); result = 1;
+            controller.getSpeedLimit(); result = 1000;
+        }};
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator("jmx-test");
+        ObjectName name = SpeedometerMXBeanImpl.toObjectName("jmx-test", aggregator.getId());
+        aggregator.startController(controller, System.currentTimeMillis());
+        try {
+            assertTrue("Verify MXBean is registered.", server.isRegistered(name));
+            assertTrue("Verify MXBean is registered by aggregator.", aggregator.isMXBeanRegistered());
+            assertEquals("Verify label.", "jmx-test", server.getAttribute(name, "Label"));
+            assertEquals("Verify active controllers.", 1, server.getAttribute(name, "ActiveControllerCount"));
+            assertEquals("Verify total bytes.", 100L, server.getAttribute(name, "TotalBytes"));
+            assertEquals("Verify total records.", 10L, server.getAttribute(name, "TotalRecords"));
+            assertEquals("Verify bytes per second.", 30L, server.getAttribute(name, "BytesPerSec"));
+            assertEquals("Verify records per second.", 3L, server.getAttribute(name, "RecordsPerSec"));
+            assertEquals("Verify speed limit.", 1000L, server.getAttribute(name, "SpeedLimit"));
+
+            TabularData taskRates = (TabularData) server.getAttribute(name, "TaskBytesPerSec");
+            CompositeData taskRate = taskRates.get(new Object[] { 1 });
+            assertEquals("Verify bytes per second of a task.", 30L, taskRate.get("value"));
+            TabularData taskNames = (TabularData) server.getAttribute(name, "TaskNames");
+            assertEquals("Verify thread name of a task.", "task-0001", taskNames.get(new Object[] { 1 }).get("value"));
+
+            server.setAttribute(name, new Attribute("SpeedLimit", 500L));
+        } finally {
+            aggregator.stopController(controller);
+        }
+        assertFalse("Verify MXBean is unregistered with the last controller.", server.isRegistered(name));
+
+        new Verifications() {{
+            controller.setSpeedLimit(500L); times = 1;
+        }};
+    }
+
+    @Test
+    public void testNotRegistered() throws Exception {
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator("jmx-disabled");
+        aggregator.startController(controller, System.currentTimeMillis());
+        try {
+            assertFalse("Verify MXBean is not registered.", ManagementFactory.getPlatformMBeanServer()
+                    .isRegistered(SpeedometerMXBeanImpl.toObjectName("jmx-disabled", aggregator.getId())));
+        } finally {
+            aggregator.stopController(controller);
+        }
+    }
+
+    @Test
+    public void testSetSpeedLimitIsAppliedToLaterControllers() {
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        new SpeedometerMXBeanImpl(aggregator, null, aggregator.getId()).setRecordsSpeedLimit(20);
+        aggregator.startController(controller, System.currentTimeMillis());
+
+        new Verifications() {{
+            controller.setRecordsSpeedLimit(20L); times = 1;
+            controller.setSpeedLimit(anyLong); times = 0;
+        }};
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetNegativeSpeedLimit() {
+        new SpeedometerMXBeanImpl(new SpeedometerSpeedAggregator(), null, null).setSpeedLimit(-1);
+    }
+
+    @Test
+    public void testRegisterAggregatorsWithoutLabel() throws Exception {
+        new Expectations() {{
+            controller.isJmx(); result = true;
+            controller.getUpstreamWaits(); result = null;
+            controller.getStageTimes(); result = null;
+            controller.getSampleStats(); result = null;
+        }};
+
+        SpeedometerSpeedAggregator first = new SpeedometerSpeedAggregator();
+        SpeedometerSpeedAggregator second = new SpeedometerSpeedAggregator();
+        first.startController(controller, System.currentTimeMillis());
+        second.startController(controller, System.currentTimeMillis());
+        try {
+            assertTrue("Verify first MXBean is registered.", first.isMXBeanRegistered());
+            assertTrue("Verify second MXBean is registered too.", second.isMXBeanRegistered());
+        } finally {
+            first.stopController(controller);
+            second.stopController(controller);
+        }
+    }
+}
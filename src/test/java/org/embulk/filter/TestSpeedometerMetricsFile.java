@@ -0,0 +1,95 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class TestSpeedometerMetricsFile {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mocked SpeedometerSpeedController controller;
+
+    @Test
+    public void testWriteAndAppend() throws Exception {
+        File file = new File(folder.getRoot(), "metrics.jsonl");
+        SpeedometerMetricsFile metricsFile = new SpeedometerMetricsFile(file.getPath());
+        metricsFile.write("{\"a\":1}");
+        metricsFile.close();
+        metricsFile.write("{\"dropped\":1}");
+
+        SpeedometerMetricsFile nextFile = new SpeedometerMetricsFile(file.getPath());
+        nextFile.write("{\"b\":2}");
+        nextFile.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("Verify lines are appended.", 2, lines.size());
+        assertEquals("Verify first line.", "{\"a\":1}", lines.get(0));
+        assertEquals("Verify second line.", "{\"b\":2}", lines.get(1));
+    }
+
+    @Test
+    public void testToJsonLine() {
+        assertEquals("Verify json line.",
+                "{\"time\":1000,\"type\":\"progress\",\"label\":\"a\\\"b\",\"active\":2,\"elapsed_millisec\":3000,"
+                + "\"total_bytes\":4000,\"total_records\":50,\"bytes_per_sec\":1333,\"records_per_sec\":16,\"throttle_nanos\":7}",
+                SpeedometerMetricsFile.toJsonLine("progress", 1000, "a\"b", 2, 3000, 4000, 50, 1333, 16, 7));
+        assertTrue("Verify no label.",
+                SpeedometerMetricsFile.toJsonLine("overall", 1000, null, 0, 1, 0, 0, 0, 0, 0).startsWith("{\"time\":1000,\"type\":\"overall\",\"active\":0,"));
+    }
+
+    @Test
+    public void testAppendJsonString() {
+        StringBuilder builder = new StringBuilder();
+        SpeedometerMetricsFile.appendJsonString(builder, "a\\b\n");
+        assertEquals("Verify escape.", "\"a\\\\b\\u000a\"", builder.toString());
+    }
+
+    @Test
+    public void testWriteSnapshotsByAggregator() throws Exception {
+        final File file = new File(folder.getRoot(), "aggregator.jsonl");
+        new Expectations() {{
+            controller.getMetricsFile(); result = file.getPath();
+            controller.getUpstreamWaits(); result = null;
+            controller.getStageTimes(); result = null;
+            controller.getSampleStats(); result = null;
+            controller.getColumnStats(); result = null;
+            controller.getTotalBytes(); result = 100;
+            controller.getTotalRecords(); result = 10;
+            controller.getPeriodBytesPerSec(anyLong); result = 30;
+            controller.getPeriodRecordsPerSec(anyLong); result = 3;
+            controller.getThrottleNanos(); result = 5;
+            controller.getThrottleCount(); result = 2;
+            controller.getName(); result = "task-0001";
+            controller.getElapsedMillisec(anyLong); result = 1900;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator("file-test", null, () -> 3000 * 1000000L);
+        aggregator.startController(controller, 1000);
+        aggregator.reportProgress(3000);
+        aggregator.stopController(controller);
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("Verify progress, task and overall lines.", 3, lines.size());
+        assertTrue("Verify progress line.", lines.get(0).matches(
+                "\\{\"time\":[0-9]+,\"type\":\"progress\",\"label\":\"file-test\",\"active\":1,\"elapsed_millisec\":2000,"
+                + "\"total_bytes\":100,\"total_records\":10,\"bytes_per_sec\":30,\"records_per_sec\":3,\"throttle_nanos\":5\\}"));
+        assertTrue("Verify task line.", lines.get(1).matches(
+                "\\{\"time\":[0-9]+,\"type\":\"task\",\"label\":\"file-test\",\"task\":\"task-0001\",\"elapsed_millisec\":1900,"
+                + "\"total_bytes\":100,\"total_records\":10,\"throttle_count\":2,\"throttle_nanos\":5\\}"));
+        assertTrue("Verify overall line.", lines.get(2).matches(
+                "\\{\"time\":[0-9]+,\"type\":\"overall\",\"label\":\"file-test\",\"active\":0,\"elapsed_millisec\":2000,"
+                + "\"total_bytes\":100,\"total_records\":10,\"bytes_per_sec\":50,\"records_per_sec\":5,\"throttle_nanos\":5\\}"));
+    }
+}
@@ -0,0 +1,142 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+public class TestSpeedometerMetricsServer {
+    @Mocked SpeedometerSpeedController controller;
+
+    @Test
+    public void testServeMetricsWhileControllerIsActive() throws Exception {
+        final int port = findFreePort();
+        new Expectations() {{
+            controller.getMetricsPort(); result = port;
+            controller.getUpstreamWaits(); result = null;
+            controller.getStageTimes(); result = null;
+            controller.getSampleStats(); result = null;
+            controller.getTotalBytes(); result = 100;
+            controller.getTotalRecords(); result = 10;
+            controller.getPeriodBytesPerSec(anyLong); result = 30;
+            controller.getPeriodRecordsPerSec(anyLong); result = 3;
+            controller.getThrottleNanos(); result = 1500000000L;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator("metrics-test");
+        String labels = "{label=\"metrics-test\",id=\"" + aggregator.getId() + "\"}";
+        aggregator.startController(controller, System.currentTimeMillis());
+        try {
+            assertTrue("Verify metrics server is started.", aggregator.isMetricsServerRunning());
+            HttpURLConnection connection = open(port);
+            assertEquals("Verify status.", 200, connection.getResponseCode());
+            assertEquals("Verify content type.", SpeedometerMetricsServer.CONTENT_TYPE, connection.getContentType());
+            String body = read(connection.getInputStream());
+            assertTrue("Verify bytes.", body.contains("speedometer_bytes_total" + labels + " 100\n"));
+            assertTrue("Verify records.", body.contains("speedometer_records_total" + labels + " 10\n"));
+            assertTrue("Verify bytes rate.", body.contains("speedometer_bytes_per_second" + labels + " 30\n"));
+            assertTrue("Verify records rate.", body.contains("speedometer_records_per_second" + labels + " 3\n"));
+            assertTrue("Verify active tasks.", body.contains("speedometer_active_tasks" + labels + " 1\n"));
+            assertTrue("Verify throttle time.", body.contains("speedometer_throttle_sleep_seconds_total" + labels + " 1.5\n"));
+            assertTrue("Verify end of metrics.", body.endsWith("# EOF\n"));
+        } finally {
+            aggregator.stopController(controller);
+        }
+        assertTrue("Verify metrics server is kept after the last controller.", aggregator.isMetricsServerRunning());
+        assertTrue("Verify totals are kept after the last controller.", read(open(port).getInputStream()).contains("speedometer_bytes_total" + labels + " 100\n"));
+        aggregator.close();
+        assertFalse("Verify metrics server is stopped with the aggregator.", aggregator.isMetricsServerRunning());
+
+        try {
+            open(port).getResponseCode();
+            fail("Verify port is closed.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testShareServerByPort() throws Exception {
+        int port = findFreePort();
+        SpeedometerSpeedAggregator first = new SpeedometerSpeedAggregator();
+        SpeedometerSpeedAggregator second = new SpeedometerSpeedAggregator();
+        SpeedometerMetricsServer server = SpeedometerMetricsServer.acquire(port, null, first);
+        try {
+            assertTrue("Verify the server listens on the loopback address by default.", server.getAddress().getAddress().isLoopbackAddress());
+            assertTrue("Verify the same server is used for the same port.", server == SpeedometerMetricsServer.acquire(port, null, second));
+            String body = read(open(port).getInputStream());
+            assertTrue("Verify first aggregator.", body.contains("speedometer_active_tasks{label=\"\",id=\"" + first.getId() + "\"} 0\n"));
+            assertTrue("Verify second aggregator without label.", body.contains("speedometer_active_tasks{label=\"\",id=\"" + second.getId() + "\"} 0\n"));
+
+            server.release(first);
+            assertEquals("Verify server is kept for other aggregators.", 200, open(port).getResponseCode());
+        } finally {
+            server.release(first);
+            server.release(second);
+        }
+    }
+
+    @Test
+    public void testBindAddress() throws Exception {
+        int port = findFreePort();
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        SpeedometerMetricsServer server = SpeedometerMetricsServer.acquire(port, "0.0.0.0", aggregator);
+        try {
+            assertTrue("Verify the server listens on all addresses.", server.getAddress().getAddress().isAnyLocalAddress());
+        } finally {
+            server.release(aggregator);
+        }
+    }
+
+    @Test
+    public void testToMetricsText() {
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        String text = SpeedometerMetricsServer.toMetricsText(Arrays.asList(aggregator));
+        assertTrue("Verify type.", text.startsWith("# TYPE speedometer_bytes counter\n"));
+        assertTrue("Verify empty label.", text.contains("speedometer_bytes_total{label=\"\",id=\"" + aggregator.getId() + "\"} 0\n"));
+    }
+
+    @Test
+    public void testEscapeLabelValue() {
+        assertEquals("Verify escape.", "a\\\\b\\\"c\\nd", SpeedometerMetricsServer.escapeLabelValue("a\\b\"c\nd"));
+    }
+
+    private static HttpURLConnection open(int port) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + SpeedometerMetricsServer.PATH).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int length;
+            while ((length = input.read(buffer)) >= 0) {
+                out.write(buffer, 0, length);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSpeedometerSampleStats {
+    @Test
+    public void testMeanAndVariance() {
+        SpeedometerSampleStats stats = new SpeedometerSampleStats(10);
+        assertEquals("Verify variance without samples.", 0.0, stats.getVariance(), 0.0);
+        for (long size : new long[] { 2, 4, 4, 4, 5, 5, 7, 9 }) {
+            stats.add(size);
+        }
+        stats.addSkipped();
+        stats.addSkipped();
+        assertEquals("Verify sample rate.", 10, stats.getSampleRate());
+        assertEquals("Verify sampled count.", 8, stats.getSampledCount());
+        assertEquals("Verify skipped count.", 2, stats.getSkippedCount());
+        assertEquals("Verify mean.", 5.0, stats.getMean(), 1e-9);
+        assertEquals("Verify sample variance.", 32.0 / 7, stats.getVariance(), 1e-9);
+        assertEquals("Verify estimated total.", 50.0, stats.getEstimatedTotal(), 1e-9);
+        assertEquals("Verify margin of error.", 1.96 * 10 * Math.sqrt(0.2 * (32.0 / 7) / 8), stats.getMarginOfError(), 1e-9);
+    }
+
+    @Test
+    public void testNoMarginWithoutSkippedRecords() {
+        SpeedometerSampleStats stats = new SpeedometerSampleStats(2);
+        stats.add(1);
+        stats.add(100);
+        assertEquals("Verify all records are measured.", 0.0, stats.getMarginOfError(), 0.0);
+    }
+
+    @Test
+    public void testMergeIsSameAsAddingAll() {
+        Random random = new Random(1);
+        SpeedometerSampleStats all = new SpeedometerSampleStats(100);
+        SpeedometerSampleStats first = new SpeedometerSampleStats(100);
+        SpeedometerSampleStats second = new SpeedometerSampleStats(100);
+        for (int i = 0; i < 1000; i++) {
+            long size = 50 + random.nextInt(1000);
+            all.add(size);
+            (i % 3 == 0 ? first : second).add(size);
+        }
+        second.addSkipped();
+
+        SpeedometerSampleStats merged = first.copy();
+        merged.merge(second);
+        merged.merge(new SpeedometerSampleStats(100));
+        assertEquals("Verify sampled count.", 1000, merged.getSampledCount());
+        assertEquals("Verify skipped count.", 1, merged.getSkippedCount());
+        assertEquals("Verify mean.", all.getMean(), merged.getMean(), 1e-9);
+        assertEquals("Verify variance.", all.getVariance(), merged.getVariance(), 1e-6);
+        assertEquals("Verify copy is not changed.", 334, first.getSampledCount());
+    }
+
+    @Test
+    public void testEstimateIsInMargin() {
+        Random random = new Random(2);
+        SpeedometerSampleStats stats = new SpeedometerSampleStats(100);
+        long total = 0;
+        for (int i = 0; i < 100000; i++) {
+            long size = 100 + random.nextInt(200);
+            total += size;
+            if (i % 100 == 0) {
+                stats.add(size);
+            } else {
+                stats.addSkipped();
+            }
+        }
+        assertTrue("Verify the true total is in the 95% confidence interval.",
+                Math.abs(stats.getEstimatedTotal() - total) <= stats.getMarginOfError());
+        assertTrue("Verify the margin is a few percent.", stats.getMarginOfError() < total * 0.05);
+    }
+}
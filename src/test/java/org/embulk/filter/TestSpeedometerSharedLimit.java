@@ -0,0 +1,165 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSpeedometerSharedLimit {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRefreshWithSingleProcess() throws Exception {
+        SpeedometerSharedLimit sharedLimit = new SpeedometerSharedLimit(newPath(), 1);
+        try {
+            assertEquals("Verify a single process uses the whole limit.", 300, sharedLimit.refresh(System.currentTimeMillis(), 300));
+            assertEquals("Verify live process count.", 1, sharedLimit.getLiveProcessCount());
+        } finally {
+            sharedLimit.close();
+        }
+    }
+
+    @Test
+    public void testRefreshWithWeightsAndLimits() throws Exception {
+        String path = newPath();
+        SpeedometerSharedLimit first = new SpeedometerSharedLimit(path, 1);
+        SpeedometerSharedLimit second = new SpeedometerSharedLimit(path, 3);
+        try {
+            long nowTime = System.currentTimeMillis();
+            first.refresh(nowTime, 400);
+            second.refresh(nowTime, 800);
+            assertEquals("Verify the smallest limit is divided by weights.", 100, first.refresh(nowTime, 400));
+            assertEquals("Verify the smallest limit is divided by weights.", 300, second.refresh(nowTime, 800));
+
+            second.release();
+            assertEquals("Verify a released slot is not counted.", 400, first.refresh(nowTime, 400));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testStaleSlotIsReused() throws Exception {
+        String path = newPath();
+        SpeedometerSharedLimit first = new SpeedometerSharedLimit(path, 1);
+        SpeedometerSharedLimit second = new SpeedometerSharedLimit(path, 1);
+        SpeedometerSharedLimit third = new SpeedometerSharedLimit(path, 1);
+        try {
+            long nowTime = System.currentTimeMillis();
+            first.refresh(nowTime, 100);
+            second.refresh(nowTime, 100);
+            assertEquals("Verify two processes share the limit.", 50, second.refresh(nowTime, 100));
+
+            long staleTime = nowTime + SpeedometerSharedLimit.STALE_MILLISEC + 1;
+            assertEquals("Verify a stale process is not counted.", 100, second.refresh(staleTime, 100));
+            assertEquals("Verify a stale slot is reused.", 50, third.refresh(staleTime, 100));
+            assertEquals("Verify a process which lost its slot claims another one.", 33, first.refresh(staleTime, 100));
+            assertEquals("Verify live process count.", 3, first.getLiveProcessCount());
+        } finally {
+            first.close();
+            second.close();
+            third.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownFile() throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), "not a speedometer file".getBytes(StandardCharsets.UTF_8));
+        new SpeedometerSharedLimit(file.getPath(), 1);
+    }
+
+    @Test
+    public void testShareLimitWithOtherProcesses() throws Exception {
+        String path = newPath();
+        SpeedometerSharedLimit sharedLimit = new SpeedometerSharedLimit(path, 1);
+        List<Process> processes = new ArrayList<>();
+        try {
+            sharedLimit.refresh(System.currentTimeMillis(), 400);
+            processes.add(startChildProcess(path, 1, 400));
+            processes.add(startChildProcess(path, 2, 800));
+
+            assertEquals("Verify a child process gets its share.", "100", readShare(processes.get(0)));
+            assertEquals("Verify a child process gets its share by weight.", "200", readShare(processes.get(1)));
+            assertEquals("Verify this process gets its share.", 100, sharedLimit.refresh(System.currentTimeMillis(), 400));
+
+            for (Process process : processes) {
+                process.getOutputStream().close(); // Child processes release their slots and exit.
+                assertEquals("Verify a child process exits.", true, process.waitFor(10, TimeUnit.SECONDS));
+            }
+            assertEquals("Verify released slots are not counted.", 400, sharedLimit.refresh(System.currentTimeMillis(), 400));
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            sharedLimit.close();
+        }
+    }
+
+    private String newPath() throws IOException {
+        return new File(folder.getRoot(), "speedometer.shm").getPath();
+    }
+
+    private static Process startChildProcess(String path, int weight, long speedLimit) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ChildProcess.class.getName(), path, Integer.toString(weight), Long.toString(speedLimit))
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    }
+
+    private static String readShare(Process process) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        assertNotNull("Verify a child process writes its share.", line);
+        return line;
+    }
+
+    // Refresh a shared limit until 3 processes are live, write the share and
+    // keep the heartbeat until stdin is closed.
+    public static class ChildProcess {
+        public static void main(String[] args) throws Exception {
+            final SpeedometerSharedLimit sharedLimit = new SpeedometerSharedLimit(args[0], Integer.parseInt(args[1]));
+            final long speedLimit = Long.parseLong(args[2]);
+            final Thread heartbeat = new Thread(() -> {
+                long deadline = System.currentTimeMillis() + 30000;
+                boolean written = false;
+                while (!Thread.currentThread().isInterrupted() && System.currentTimeMillis() < deadline) {
+                    long share = sharedLimit.refresh(System.currentTimeMillis(), speedLimit);
+                    if (!written && sharedLimit.getLiveProcessCount() == 3) {
+                        System.out.println(share);
+                        System.out.flush();
+                        written = true;
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            heartbeat.start();
+
+            while (System.in.read() >= 0) {
+                // Wait for the parent process.
+            }
+            heartbeat.interrupt();
+            heartbeat.join();
+            sharedLimit.close();
+        }
+    }
+}
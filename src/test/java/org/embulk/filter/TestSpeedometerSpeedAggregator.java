@@ -1,17 +1,23 @@
 package org.embulk.filter;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import org.embulk.filter.SpeedometerFilterPlugin.PluginTask;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import mockit.Delegate;
 import mockit.Expectations;
 import mockit.Mocked;
 import mockit.Verifications;
+import mockit.VerificationsInOrder;
 
 public class TestSpeedometerSpeedAggregator {
     @Mocked SpeedometerSpeedController controller;
@@ -19,7 +25,64 @@ public class TestSpeedometerSpeedAggregator {
 
     @Test
     public void testGetInstance() {
-        assertNotNull("Verify there is a singleton.", SpeedometerSpeedAggregator.getInstance(task));
+        assertNotNull("Verify there is an instance without a transaction.", SpeedometerSpeedAggregator.getInstance(task));
+    }
+
+    @Test
+    public void testGetInstanceForEachTransaction() {
+        final String firstId = SpeedometerSpeedAggregator.newAggregatorId();
+        final String secondId = SpeedometerSpeedAggregator.newAggregatorId();
+        new Expectations() {{
+            task.getAggregatorId(); result = firstId; result = firstId; result = secondId; result = firstId;
+        }};
+
+        SpeedometerSpeedAggregator first = SpeedometerSpeedAggregator.getInstance(task);
+        assertTrue("Verify the same instance in a transaction.", first == SpeedometerSpeedAggregator.getInstance(task));
+        assertTrue("Verify another instance for another transaction.", first != SpeedometerSpeedAggregator.getInstance(task));
+        assertTrue("Verify instances are registered.", SpeedometerSpeedAggregator.hasInstance(firstId) && SpeedometerSpeedAggregator.hasInstance(secondId));
+
+        SpeedometerSpeedAggregator.removeInstance(firstId);
+        SpeedometerSpeedAggregator.removeInstance(secondId);
+        assertFalse("Verify an instance is removed.", SpeedometerSpeedAggregator.hasInstance(firstId));
+        assertTrue("Verify a new instance after the transaction.", first != SpeedometerSpeedAggregator.getInstance(task));
+        SpeedometerSpeedAggregator.removeInstance(firstId);
+    }
+
+    @Test
+    public void testInstanceIsReleasedWithoutTransaction() {
+        final String remoteId = SpeedometerSpeedAggregator.newAggregatorId();
+        final String localId = SpeedometerSpeedAggregator.newAggregatorId();
+        new Expectations() {{
+            task.getAggregatorId(); result = remoteId; result = remoteId; result = localId;
+        }};
+
+        SpeedometerSpeedAggregator remote = SpeedometerSpeedAggregator.getInstance(task);
+        SpeedometerSpeedAggregator.getInstance(task);
+        remote.startController(controller, System.currentTimeMillis());
+        remote.stopController(controller);
+        assertTrue("Verify an instance is kept while another task opened it.", SpeedometerSpeedAggregator.hasInstance(remoteId));
+        remote.startController(controller, System.currentTimeMillis());
+        remote.stopController(controller);
+        assertFalse("Verify an instance is released when all tasks in another JVM stop.", SpeedometerSpeedAggregator.hasInstance(remoteId));
+
+        SpeedometerSpeedAggregator.addTransaction(localId);
+        SpeedometerSpeedAggregator local = SpeedometerSpeedAggregator.getInstance(task);
+        local.startController(controller, System.currentTimeMillis());
+        local.stopController(controller);
+        assertTrue("Verify an instance is kept until its transaction finishes.", SpeedometerSpeedAggregator.hasInstance(localId));
+        SpeedometerSpeedAggregator.removeInstance(localId);
+    }
+
+    @Test
+    public void testInstanceIsReleasedByTaskFailedToOpen() {
+        final String remoteId = SpeedometerSpeedAggregator.newAggregatorId();
+        new Expectations() {{
+            task.getAggregatorId(); result = remoteId;
+        }};
+
+        SpeedometerSpeedAggregator remote = SpeedometerSpeedAggregator.getInstance(task);
+        remote.releaseIfIdle();
+        assertFalse("Verify an instance is released without starting a controller.", SpeedometerSpeedAggregator.hasInstance(remoteId));
     }
 
     @Test
@@ -67,6 +130,12 @@ public class TestSpeedometerSpeedAggregator {
 
     @Test
     public void testStopControllerShowOverallMessage(@Mocked final Logger logger) {
+        new Expectations() {{
+            controller.getUpstreamWaits(); result = null; // latency_stats is disabled.
+            controller.getStageTimes(); result = null; // stage_stats is disabled.
+            controller.getSampleStats(); result = null;
+        }};
+
         SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
         new Expectations(aggregator) {{
             aggregator.getLogger(); result = logger;
@@ -98,14 +167,292 @@ public class TestSpeedometerSpeedAggregator {
     }
 
     @Test
-    public void testCheckProgress() throws Exception {
+    public void testGetRecordsSpeedLimitForController() {
+        new Expectations() {{
+            controller.getRecordsSpeedLimit(); result = 10;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        assertEquals("Verify records speed limit for one controller.", 10, aggregator.getRecordsSpeedLimitForController(controller));
+        aggregator.startController(controller, nowTime);
+        assertEquals("Verify records speed limit for two controllers.", 10 / 2, aggregator.getRecordsSpeedLimitForController(controller));
+    }
+
+    @Test
+    public void testGetSpeedLimitForControllerWithShare() {
+        new Expectations() {{
+            controller.getSpeedLimit(); result = 100; minTimes = 0;
+            controller.getSpeedLimitShare(); result = 70;
+            controller.getRecordsSpeedLimitShare(); result = 0;
+            controller.getRecordsSpeedLimit(); result = 10;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.startController(controller, nowTime);
+        assertEquals("Verify rebalanced share is used.", 70, aggregator.getSpeedLimitForController(controller));
+        assertEquals("Verify even share is used without rebalanced share.", 10 / 2, aggregator.getRecordsSpeedLimitForController(controller));
+    }
+
+    @Test
+    public void testGetSpeedLimitForControllerWithSharedLimit(@Mocked final SpeedometerSharedLimit sharedLimit) {
+        new Expectations() {{
+            controller.getSpeedLimit(); result = 100;
+            sharedLimit.getProcessSpeedLimit(); result = 40;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator(null, sharedLimit);
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.startController(controller, nowTime);
+        assertEquals("Verify the limit of this process is shared by controllers.", 40 / 2, aggregator.getSpeedLimitForController(controller));
+        aggregator.stopController(controller);
+        aggregator.stopController(controller);
+
+        new Verifications() {{
+            sharedLimit.refresh(anyLong, 100); times = 2;
+            sharedLimit.release(); times = 1;
+        }};
+    }
+
+    @Test
+    public void testHeartbeatOfSharedLimitByReporter(@Mocked final SpeedometerSharedLimit sharedLimit) {
+        new Expectations() {{
+            controller.getLogIntervalMillisec(); result = 0;
+            controller.getSpeedLimit(); result = 100;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator(null, sharedLimit);
+        aggregator.startController(controller, System.currentTimeMillis());
+        assertTrue("Verify reporter is started for heartbeats without log_interval_seconds.", aggregator.isReporterRunning());
+        aggregator.refreshSharedLimit();
+        aggregator.stopController(controller);
+        assertFalse("Verify reporter is stopped with the last controller.", aggregator.isReporterRunning());
+        aggregator.refreshSharedLimit();
+
+        new Verifications() {{
+            sharedLimit.refresh(anyLong, 100); minTimes = 2;
+        }};
+    }
+
+    @Test
+    public void testStartAndStopControllerUpdateEvenShares() {
+        new Expectations() {{
+            controller.getSpeedLimit(); result = 100;
+            controller.getRecordsSpeedLimit(); result = 10;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.startController(controller, nowTime);
+        aggregator.stopController(controller);
+
+        new VerificationsInOrder() {{
+            controller.setSpeedLimitShare(100, 10); times = 1;
+            controller.setSpeedLimitShare(50, 5); times = 2;
+            controller.setSpeedLimitShare(100, 10); times = 1;
+        }};
+    }
+
+    @Test
+    public void testStopControllerMergesColumnStats(@Mocked final Logger logger) {
+        final SpeedometerColumnStats stats = new SpeedometerColumnStats(new String[] { "a" }, false);
+        stats.add(0, 11);
+        stats.addNull(0);
+        new Expectations() {{
+            controller.getColumnStats(); result = stats;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        new Expectations(aggregator) {{
+            aggregator.getLogger(); result = logger;
+        }};
+
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.startController(controller, nowTime);
+        aggregator.stopController(controller);
+        aggregator.stopController(controller);
+
+        SpeedometerColumnStats globalStats = aggregator.getGlobalColumnStats();
+        assertEquals("Verify column bytes are merged.", 22, globalStats.getBytes(0));
+        assertEquals("Verify null counts are merged.", 2, globalStats.getNullCount(0));
+        assertEquals("{speedometer: {column: %s, total: %s, non-null: %s, null: %s, max: %s}}", aggregator.getColumnLogFormat());
+
+        new Verifications() {{
+            logger.info(withPrefix("{speedometer: {column: a, total: 22.0b, ")); times = 1;
+        }};
+    }
+
+    @Test
+    public void testGetIntervalColumnStats() {
+        final SpeedometerColumnStats stats = new SpeedometerColumnStats(new String[] { "a" }, true);
+        stats.add(0, 11);
+        new Expectations() {{
+            controller.getColumnStats(); result = stats;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.startController(controller, nowTime);
+        aggregator.stopController(controller);
+
+        assertEquals("Verify stats of stopped and active controllers are merged.", 22, aggregator.getIntervalColumnStats().getBytes(0));
+    }
+
+    @Test
+    public void testStopControllerMergesLatencyHistograms(@Mocked final Logger logger) {
+        final SpeedometerLatencyHistogram upstreamWaits = new SpeedometerLatencyHistogram();
+        final SpeedometerLatencyHistogram downstreamBlocks = new SpeedometerLatencyHistogram();
+        upstreamWaits.record(2000000);
+        downstreamBlocks.record(3000);
+        new Expectations() {{
+            controller.getUpstreamWaits(); result = upstreamWaits;
+            controller.getDownstreamBlocks(); result = downstreamBlocks;
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        new Expectations(aggregator) {{
+            aggregator.getLogger(); result = logger;
+        }};
+
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.startController(controller, nowTime);
+        assertEquals("Verify latencies of active controllers.", 2, aggregator.getLatencyHistograms(true)[0].getTotalCount());
+        aggregator.stopController(controller);
+        aggregator.stopController(controller);
+        assertEquals("Verify latencies of stopped controllers.", 2, aggregator.getLatencyHistograms(false)[1].getTotalCount());
+
+        new Verifications() {{
+            logger.info("{speedometer: {upstream-wait: {p50: 2.0ms, p99: 2.0ms, max: 2.0ms}, downstream-block: {p50: 3.0us, p99: 3.0us, max: 3.0us}}}"); times = 1;
+        }};
+    }
+
+    @Test
+    public void testReportProgressWarnsLaggingTask(@Mocked final Logger logger) {
+        new Expectations() {{
+            controller.getUpstreamWaits(); result = null;
+            controller.getStageTimes(); result = null;
+            controller.getSampleStats(); result = null;
+            controller.isTaskStats(); result = true;
+            controller.getSkewWarningFactor(); result = 2.0;
+            controller.getName(); result = "task-0001";
+            controller.getPeriodBytesPerSec(anyLong); returns(100L, 10L, 100L, 10L);
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        new Expectations(aggregator) {{
+            aggregator.getLogger(); result = logger;
+        }};
+
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.startController(controller, nowTime);
+        aggregator.reportProgress(nowTime + 1);
+
+        new Verifications() {{
+            logger.info(withPrefix("{speedometer: {task: task-0001, ")); times = 2;
+            logger.warn("{speedometer: {skew: 1.82, max-speed: 100b/s, median-speed: 55.0b/s, slowest: task-0001, slowest-speed: 10.0b/s}}"); times = 1;
+        }};
+    }
+
+    @Test
+    public void testSkew() {
+        assertEquals("Verify median of odd rates.", 20, SpeedometerSpeedAggregator.toMedian(new long[] { 10, 20, 90 }));
+        assertEquals("Verify median of even rates.", 15, SpeedometerSpeedAggregator.toMedian(new long[] { 10, 20 }));
+        assertEquals("Verify skew.", 4.5, SpeedometerSpeedAggregator.toSkew(new long[] { 10, 20, 90 }), 0.001);
+        assertEquals("Verify no skew.", 1.0, SpeedometerSpeedAggregator.toSkew(new long[] { 0, 0 }), 0.001);
+        assertTrue("Verify lagging task.", SpeedometerSpeedAggregator.isLagging(10, 30, 2.0));
+        assertFalse("Verify not lagging task.", SpeedometerSpeedAggregator.isLagging(20, 30, 2.0));
+        assertFalse("Verify disabled warning.", SpeedometerSpeedAggregator.isLagging(0, 30, 0));
+    }
+
+    @Test
+    public void testAllocateFairShares() {
+        assertArrayEquals("Verify unused share is given to busy controllers.",
+                new long[] { 10, 45, 45 }, SpeedometerSpeedAggregator.allocateFairShares(100, new long[] { 10, Long.MAX_VALUE, Long.MAX_VALUE }));
+        assertArrayEquals("Verify busy controllers share the limit evenly.",
+                new long[] { 50, 50 }, SpeedometerSpeedAggregator.allocateFairShares(100, new long[] { Long.MAX_VALUE, Long.MAX_VALUE }));
+        assertArrayEquals("Verify small demands are filled first.",
+                new long[] { 60, 10, 30 }, SpeedometerSpeedAggregator.allocateFairShares(100, new long[] { Long.MAX_VALUE, 10, 30 }));
+        assertArrayEquals("Verify remaining limit is divided evenly.",
+                new long[] { 40, 60 }, SpeedometerSpeedAggregator.allocateFairShares(100, new long[] { 10, 30 }));
+        assertArrayEquals("Verify no limit gives no share.",
+                new long[] { 0, 0 }, SpeedometerSpeedAggregator.allocateFairShares(0, new long[] { 10, 30 }));
+    }
+
+    @Test
+    public void testToAdaptiveSpeedLimit() {
+        assertEquals("Verify limit is decreased over the target.",
+                700, SpeedometerSpeedAggregator.toAdaptiveSpeedLimit(1000, 1000, 300, 200, true));
+        assertEquals("Verify limit is not decreased under the minimum.",
+                10, SpeedometerSpeedAggregator.toAdaptiveSpeedLimit(12, 1000, 300, 200, false));
+        assertEquals("Verify limit is increased under the target while throttled.",
+                750, SpeedometerSpeedAggregator.toAdaptiveSpeedLimit(700, 1000, 100, 200, true));
+        assertEquals("Verify limit is kept under the target while not throttled.",
+                700, SpeedometerSpeedAggregator.toAdaptiveSpeedLimit(700, 1000, 100, 200, false));
+        assertEquals("Verify limit is increased at least by one.",
+                11, SpeedometerSpeedAggregator.toAdaptiveSpeedLimit(10, 10, 100, 200, true));
+    }
+
+    @Test
+    public void testAdaptiveSpeedLimitIsResetBySpeedLimit() {
+        new Expectations() {{
+            controller.getSpeedLimit(); result = 1000;
+            controller.getRecordsSpeedLimit(); result = 0;
+            controller.getTargetLatencyNanos(); result = 200;
+            controller.sampleDemand(anyLong); result = new long[] { Long.MAX_VALUE, 0 };
+            controller.sampleDownstream(); result = new long[] { 300, 1 };
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        aggregator.startController(controller, System.currentTimeMillis());
+        aggregator.rebalance(1000);
+        assertEquals("Verify limit is adapted by latency.", 700, aggregator.getSpeedLimit(controller));
+        aggregator.setSpeedLimit(1000);
+        assertEquals("Verify adapted limit is reset by speed limit.", 1000, aggregator.getSpeedLimit(controller));
+
+        new VerificationsInOrder() {{
+            controller.setSpeedLimitShare(700, 0); times = 1;
+            controller.setSpeedLimit(1000); times = 1; // Only through JMX.
+            controller.setSpeedLimitShare(1000, 0); times = 1;
+        }};
+    }
+
+    @Test
+    public void testCheckRebalance() {
+        new Expectations() {{
+            controller.getSpeedLimit(); result = 100;
+            controller.getRecordsSpeedLimit(); result = 0;
+            controller.sampleDemand(anyLong); result = new long[] { 8, 0 };
+        }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        aggregator.checkRebalance(nowTime);
+        aggregator.checkRebalance(nowTime + SpeedometerSpeedAggregator.REBALANCE_INTERVAL_MILLISEC + 1);
+        aggregator.checkRebalance(nowTime + SpeedometerSpeedAggregator.REBALANCE_INTERVAL_MILLISEC + 2); // This call should not affect anything.
+
+        new Verifications() {{
+            controller.sampleDemand(SpeedometerSpeedAggregator.REBALANCE_INTERVAL_MILLISEC + 1); times = 1;
+            controller.setSpeedLimitShare(100, 0); times = 2; // An even share at start and the rebalanced one.
+        }};
+    }
+
+    @Test
+    public void testReportProgress() throws Exception {
         SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
         long initPeriodTime = System.currentTimeMillis();
         final long startPeriodTime = initPeriodTime + 2;
         aggregator.startController(controller, initPeriodTime);
-        aggregator.checkProgress(initPeriodTime, 1);
-        aggregator.checkProgress(startPeriodTime, 1);
-        aggregator.checkProgress(startPeriodTime, 1); // This call should not affect anything.
+        aggregator.reportProgress(startPeriodTime);
 
         new Verifications() {{
             controller.renewPeriod(); times = 1;
@@ -117,20 +464,39 @@ public class TestSpeedometerSpeedAggregator {
     }
 
     @Test
-    public void testCheckProgressIsDisabled() throws Exception {
+    public void testReporterIsStartedAndStopped() throws Exception {
+        final CountDownLatch reported = new CountDownLatch(1);
+        new Expectations() {{
+            controller.getLogIntervalMillisec(); result = 1;
+            controller.renewPeriod(); result = new Delegate<Void>() {
+                @SuppressWarnings("unused")
+                void delegate() {
+                    reported.countDown();
+                }
+            };
+        }};
+
         SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
-        long initPeriodTime = System.currentTimeMillis();
-        final long startPeriodTime = initPeriodTime + 2;
-        aggregator.startController(controller, initPeriodTime);
-        aggregator.checkProgress(initPeriodTime, 0);
-        aggregator.checkProgress(startPeriodTime, 0);
+        long nowTime = System.currentTimeMillis();
+        aggregator.startController(controller, nowTime);
+        assertTrue("Verify reporter is started with the first controller.", aggregator.isReporterRunning());
+        aggregator.startController(controller, nowTime);
+        assertTrue("Verify reporter reports progress.", reported.await(10, TimeUnit.SECONDS));
+        aggregator.stopController(controller);
+        assertTrue("Verify reporter is running while there is an active controller.", aggregator.isReporterRunning());
+        aggregator.stopController(controller);
+        assertFalse("Verify reporter is stopped with the last controller.", aggregator.isReporterRunning());
+    }
 
-        new Verifications() {{
-            controller.renewPeriod(); times = 0;
-            controller.getTotalBytes(); times = 0;
-            controller.getTotalRecords(); times = 0;
-            controller.getPeriodBytesPerSec(startPeriodTime); times = 0;
-            controller.getPeriodRecordsPerSec(startPeriodTime); times = 0;
+    @Test
+    public void testReporterIsDisabled() throws Exception {
+        new Expectations() {{
+            controller.getLogIntervalMillisec(); result = 0;
         }};
+
+        SpeedometerSpeedAggregator aggregator = new SpeedometerSpeedAggregator();
+        aggregator.startController(controller, System.currentTimeMillis());
+        assertFalse("Verify reporter is not started.", aggregator.isReporterRunning());
+        aggregator.stopController(controller);
     }
 }
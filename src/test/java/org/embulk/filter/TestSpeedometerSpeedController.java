@@ -1,5 +1,6 @@
 package org.embulk.filter;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import mockit.Mocked;
@@ -18,6 +19,25 @@ public class TestSpeedometerSpeedController {
 
     SpeedometerSpeedController controller;
 
+    // Sleeping advances the time, so throttled tests don't wait.
+    static class ManualClock implements SpeedometerClock {
+        long nowNanos;
+
+        ManualClock(long nowNanos) {
+            this.nowNanos = nowNanos;
+        }
+
+        @Override
+        public long nanoTime() {
+            return nowNanos;
+        }
+
+        @Override
+        public void parkNanos(long nanos) {
+            nowNanos += nanos;
+        }
+    }
+
     @Test
     public void testSpeedometerSpeedController() {
         new Expectations() {{
@@ -57,13 +77,14 @@ public class TestSpeedometerSpeedController {
             task.getLogIntervalSeconds(); result = 3;
             aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 10000;
         }};
-        long nowTime = System.currentTimeMillis();
+        final long[] nowNanos = { 5000000000L };
         int newDataSize = 3;
 
-        controller = new SpeedometerSpeedController(task, aggregator);
-        controller.checkSpeedLimit(nowTime, newDataSize);
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        controller.checkSpeedLimitNow(newDataSize, 0);
         assertEquals("Verify total bytes", newDataSize, controller.getTotalBytes());
-        controller.checkSpeedLimit(nowTime + 1, newDataSize);
+        nowNanos[0] += 1000000L;
+        controller.checkSpeedLimitNow(newDataSize, 0);
         assertEquals("Verify total bytes", newDataSize * 2, controller.getTotalBytes());
     }
 
@@ -75,12 +96,12 @@ public class TestSpeedometerSpeedController {
             task.getLogIntervalSeconds(); result = 3;
             aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 10000;
         }};
-        long nowTime = System.currentTimeMillis();
+        final long[] nowNanos = { 5000000000L };
         int newDataSize = 3;
 
-        controller = new SpeedometerSpeedController(task, aggregator);
-        controller.checkSpeedLimit(nowTime, newDataSize);
-        assertTrue("Verify total bytes", controller.getPeriodBytesPerSec(System.currentTimeMillis()) > 0);
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        controller.checkSpeedLimitNow(newDataSize, 0);
+        assertEquals("Verify bytes per second", 300, controller.getPeriodBytesPerSec(5010));
     }
 
     @Test
@@ -91,19 +112,160 @@ public class TestSpeedometerSpeedController {
             task.getLogIntervalSeconds(); result = 3;
             aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 10000;
         }};
-        long nowTime = System.currentTimeMillis();
+        final long[] nowNanos = { 5000000000L };
         int newDataSize = 3;
 
-        controller = new SpeedometerSpeedController(task, aggregator);
-        controller.checkSpeedLimit(nowTime, newDataSize);
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        controller.checkSpeedLimitNow(newDataSize, 0);
 
         new Verifications() {{
-            aggregator.startController(controller, anyLong); times = 1;
-            aggregator.checkProgress(anyLong, 3 * 1000); times = 1;
+            aggregator.startController(controller, 5000); times = 1;
+            aggregator.reportProgress(anyLong); times = 0;
             aggregator.getSpeedLimitForController(controller); times = 1;
         }};
     }
 
+    @Test
+    public void testCheckRecordsSpeedLimit() {
+        new Expectations() {{
+            task.getSpeedLimit(); result = 0L;
+            task.getRecordsSpeedLimit(); result = 1L;
+            task.getMaxSleepMillisec(); result = 2;
+            task.getLogIntervalSeconds(); result = 3;
+            aggregator.getRecordsSpeedLimitForController((SpeedometerSpeedController)any); result = 10000;
+        }};
+        final long[] nowNanos = { 5000000000L };
+
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        assertEquals("Verify records speed limit is set.", 1, controller.getRecordsSpeedLimit());
+        controller.checkSpeedLimitNow(3, 1);
+
+        new Verifications() {{
+            aggregator.getSpeedLimitForController(controller); times = 0;
+            aggregator.getRecordsSpeedLimitForController(controller); times = 1;
+        }};
+    }
+
+    @Test
+    public void testSampleDemand() {
+        new Expectations() {{
+            task.getSpeedLimit(); result = 1000000L;
+            task.getMaxSleepMillisec(); result = 2;
+            task.getLogIntervalSeconds(); result = 3;
+            aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 1000000;
+        }};
+        controller = new SpeedometerSpeedController(task, aggregator, new ManualClock(5000000000L));
+        controller.checkSpeedLimitNow(300, 10);
+        assertArrayEquals("Verify demand per second.", new long[] { 150, 5 }, controller.sampleDemand(2000));
+        assertArrayEquals("Verify demand is reset after sampling.", new long[] { 0, 0 }, controller.sampleDemand(2000));
+
+        controller.checkSpeedLimitNow(2000000, 10); // This exceeds the bucket and waits.
+        assertArrayEquals("Verify throttled controller wants more.", new long[] { Long.MAX_VALUE, Long.MAX_VALUE }, controller.sampleDemand(2000));
+    }
+
+    @Test
+    public void testCheckSpeedLimitNowWithClock() {
+        new Expectations() {{
+            task.getSpeedLimit(); result = 1000L;
+            task.getMaxSleepMillisec(); result = 2;
+            task.getLogIntervalSeconds(); result = 3;
+            aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 1000;
+        }};
+        ManualClock clock = new ManualClock(5000000000L);
+
+        controller = new SpeedometerSpeedController(task, aggregator, clock);
+        controller.start();
+        controller.checkSpeedLimitNow(1000, 1);
+        assertArrayEquals("Verify the full bucket doesn't wait.", new long[] { 500, 0 }, controller.sampleDemand(2000));
+        clock.nowNanos += 500000000L;
+        controller.checkSpeedLimitNow(1000, 1);
+        assertArrayEquals("Verify an empty bucket waits by the clock.", new long[] { Long.MAX_VALUE, Long.MAX_VALUE }, controller.sampleDemand(2000));
+        clock.nowNanos += 1500000000L;
+        controller.checkSpeedLimitNow(1000, 1);
+        assertArrayEquals("Verify the bucket is refilled by the clock.", new long[] { 500, 0 }, controller.sampleDemand(2000));
+        assertEquals("Verify period time is calculated by the clock.", 1000, controller.getPeriodBytesPerSec(8000));
+
+        new Verifications() {{
+            aggregator.startController(controller, 5000); times = 1;
+        }};
+    }
+
+    @Test
+    public void testTaskStats() {
+        new Expectations() {{
+            task.getTaskStats(); result = true;
+            task.getSkewWarningFactor(); result = 1.5;
+            aggregator.nextControllerSequence(); result = 3;
+        }};
+
+        final long[] nowNanos = { 1000000000L };
+
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        controller.start();
+        assertTrue("Verify task stats is set.", controller.isTaskStats());
+        assertEquals("Verify skew warning factor is set.", 1.5, controller.getSkewWarningFactor(), 0.001);
+        assertEquals("Verify name is the thread name.", Thread.currentThread().getName(), controller.getName());
+        assertEquals("Verify sequence is given by the aggregator.", 3, controller.getSequence());
+        assertEquals("Verify idle time from start.", 500, controller.getIdleMillisec(1500));
+        nowNanos[0] += 400000000L;
+        controller.checkSpeedLimitNow(1, 1);
+        assertEquals("Verify idle time from the last check.", 100, controller.getIdleMillisec(1500));
+    }
+
+    @Test
+    public void testElapsedAndThrottleTime() {
+        new Expectations() {{
+            task.getSpeedLimit(); result = 1000L;
+            task.getMaxSleepMillisec(); result = 2;
+            aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 1000;
+        }};
+        ManualClock clock = new ManualClock(5000000000L);
+
+        controller = new SpeedometerSpeedController(task, aggregator, clock);
+        assertEquals("Verify no elapsed time before start.", 0, controller.getElapsedMillisec(6000));
+        controller.start();
+        controller.checkSpeedLimitNow(2000, 1);
+        assertEquals("Verify throttle count.", 1, controller.getThrottleCount());
+        assertEquals("Verify throttle time is max_sleep_millisec.", 2000000L, controller.getThrottleNanos());
+        assertEquals("Verify elapsed time while running.", 1000, controller.getElapsedMillisec(6000));
+
+        clock.nowNanos += 1500000000L;
+        controller.stop();
+        assertEquals("Verify elapsed time until stop includes the sleep.", 1502, controller.getElapsedMillisec(9000));
+    }
+
+    @Test
+    public void testSleepIsInterrupted() {
+        new Expectations() {{
+            task.getSpeedLimit(); result = 1000L;
+            task.getMaxSleepMillisec(); result = 1000;
+            aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 1000;
+        }};
+        final long[] nowNanos = { 5000000000L };
+
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        Thread.currentThread().interrupt();
+        controller.checkSpeedLimitNow(2000, 1); // This would sleep forever by the stopped clock without the interrupt.
+        assertTrue("Verify the interrupt flag is kept.", Thread.interrupted());
+        assertEquals("Verify throttle count.", 1, controller.getThrottleCount());
+    }
+
+    @Test
+    public void testSampleDownstream() {
+        new Expectations() {{
+            task.getTargetLatencyMs(); result = 200;
+        }};
+
+        controller = new SpeedometerSpeedController(task, aggregator);
+        assertEquals("Verify target latency.", 200000000L, controller.getTargetLatencyNanos());
+        controller.addDownstreamTime(100);
+        controller.addDownstreamTime(300);
+        assertArrayEquals("Verify downstream time and count.", new long[] { 400, 2 }, controller.sampleDownstream());
+        controller.addDownstreamTime(50);
+        assertArrayEquals("Verify only time since the last sample.", new long[] { 50, 1 }, controller.sampleDownstream());
+        assertArrayEquals("Verify no time.", new long[] { 0, 0 }, controller.sampleDownstream());
+    }
+
     @Test
     public void testRenewPeriod() {
         controller = new SpeedometerSpeedController(task, aggregator);
@@ -119,17 +281,54 @@ public class TestSpeedometerSpeedController {
             task.getLogIntervalSeconds(); result = 3;
             aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 10000;
         }};
-        long nowTime = System.currentTimeMillis();
+        final long[] nowNanos = { 5000000000L };
         int newDataSize = 3;
 
-        controller = new SpeedometerSpeedController(task, aggregator);
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
         assertEquals("Verify total records is zero.", 0, controller.getTotalRecords());
-        controller.checkSpeedLimit(nowTime, newDataSize);
+        controller.checkSpeedLimitNow(newDataSize, 0);
         assertEquals("Verify total records is zero for no new record.", 0, controller.getTotalRecords());
-        controller.checkSpeedLimit(nowTime + 1, newDataSize, true);
+        nowNanos[0] += 1000000L;
+        controller.checkSpeedLimitNow(newDataSize, 1);
         assertEquals("Verify total records", 1, controller.getTotalRecords());
     }
 
+    @Test
+    public void testTotalsAreKeptInNewPeriod() {
+        final long[] nowNanos = { 5000000000L };
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        controller.checkSpeedLimitNow(10, 1);
+        controller.renewPeriod();
+        nowNanos[0] += 1000000000L;
+        controller.checkSpeedLimitNow(5, 2);
+        assertEquals("Verify total bytes over periods.", 15, controller.getTotalBytes());
+        assertEquals("Verify total records over periods.", 3, controller.getTotalRecords());
+        assertEquals("Verify speed of the new period.", 5000, controller.getPeriodBytesPerSec(6001));
+        controller.stop();
+        assertEquals("Verify total bytes after stop.", 15, controller.getTotalBytes());
+    }
+
+    @Test
+    public void testCheckSpeedLimitWithBatch() {
+        new Expectations() {{
+            task.getSpeedLimit(); result = 1L;
+            task.getMaxSleepMillisec(); result = 2;
+            task.getLogIntervalSeconds(); result = 3;
+            aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 10000;
+        }};
+        final long[] nowNanos = { 5000000000L };
+
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        controller.checkSpeedLimitNow(30, 10);
+        assertEquals("Verify total bytes of a batch", 30, controller.getTotalBytes());
+        assertEquals("Verify total records of a batch", 10, controller.getTotalRecords());
+
+        new Verifications() {{
+            aggregator.reportProgress(anyLong); times = 0;
+            aggregator.getSpeedLimitForController(controller); times = 1;
+        }};
+    }
+
     @Test
     public void testGetPeriodRecordsPerSec() {
         new Expectations() {{
@@ -138,14 +337,14 @@ public class TestSpeedometerSpeedController {
             task.getLogIntervalSeconds(); result = 3;
             aggregator.getSpeedLimitForController((SpeedometerSpeedController)any); result = 10000;
         }};
-        long nowTime = System.currentTimeMillis();
+        final long[] nowNanos = { 5000000000L };
         int newDataSize = 3;
 
-        controller = new SpeedometerSpeedController(task, aggregator);
-        assertEquals("Verify total records/s", 0, controller.getPeriodRecordsPerSec(System.currentTimeMillis()));
-        controller.checkSpeedLimit(nowTime, newDataSize);
-        assertEquals("Verify total records/s is not changed", 0, controller.getPeriodRecordsPerSec(System.currentTimeMillis()));
-        controller.checkSpeedLimit(nowTime, newDataSize, true);
-        assertTrue("Verify total records/s is changed", controller.getPeriodRecordsPerSec(System.currentTimeMillis()) > 0);
+        controller = new SpeedometerSpeedController(task, aggregator, () -> nowNanos[0]);
+        assertEquals("Verify total records/s", 0, controller.getPeriodRecordsPerSec(5010));
+        controller.checkSpeedLimitNow(newDataSize, 0);
+        assertEquals("Verify total records/s is not changed", 0, controller.getPeriodRecordsPerSec(5010));
+        controller.checkSpeedLimitNow(newDataSize, 1);
+        assertEquals("Verify total records/s is changed", 100, controller.getPeriodRecordsPerSec(5010));
     }
 }
@@ -0,0 +1,40 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestSpeedometerStageTimes {
+    @Test
+    public void testAddAndPercentage() {
+        SpeedometerStageTimes times = new SpeedometerStageTimes();
+        assertEquals("Verify no bottleneck without times.", "none", times.getBottleneck());
+        assertEquals("Verify percentage without times.", 0.0, times.toPercentage(0), 0.001);
+
+        times.addUpstreamWait(100);
+        times.addMeasure(50);
+        times.addThrottle(-10);
+        times.addDownstream(50);
+        assertEquals("Verify a negative time is ignored.", 0, times.getThrottleNanos());
+        assertEquals("Verify total.", 200, times.getTotalNanos());
+        assertEquals("Verify percentage.", 25.0, times.toPercentage(times.getMeasureNanos()), 0.001);
+        assertEquals("Verify bottleneck.", SpeedometerStageTimes.UPSTREAM, times.getBottleneck());
+    }
+
+    @Test
+    public void testMergeAndCopy() {
+        SpeedometerStageTimes times = new SpeedometerStageTimes();
+        times.addDownstream(300);
+        SpeedometerStageTimes other = new SpeedometerStageTimes();
+        other.addMeasure(200);
+        other.addThrottle(400);
+
+        SpeedometerStageTimes copy = times.copy();
+        copy.merge(other);
+        assertEquals("Verify copy is not changed by merge.", 300, times.getTotalNanos());
+        assertEquals("Verify merged total.", 900, copy.getTotalNanos());
+        assertEquals("Verify throttle is the bottleneck.", SpeedometerStageTimes.THROTTLE, copy.getBottleneck());
+        copy.addMeasure(500);
+        assertEquals("Verify measure is the bottleneck.", SpeedometerStageTimes.MEASURE, copy.getBottleneck());
+    }
+}
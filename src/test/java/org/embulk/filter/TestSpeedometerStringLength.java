@@ -0,0 +1,67 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSpeedometerStringLength {
+    private static final String[] TEXTS = {
+        "",
+        "abc",
+        "caf\u00e9",
+        "\u65e5\u672c\u8a9e\u306e\u5546\u54c1\u540d",
+        "\uff76\uff80\uff76\uff85",
+        "emoji \ud83d\ude00 text",
+        "lone \ud83d surrogate \ude00",
+    };
+
+    @Test
+    public void testLengthWithoutCharset() {
+        SpeedometerStringLength length = SpeedometerStringLength.of(Optional.<String>empty());
+        for (String text : TEXTS) {
+            assertEquals("Verify length is the number of chars.", text.length(), length.length(text));
+        }
+    }
+
+    @Test
+    public void testLengthWithCharsets() {
+        String[] charsets = { "UTF-8", "UTF-16BE", "UTF-16LE", "US-ASCII", "ISO-8859-1", "Shift_JIS", "EUC-JP", "windows-31j" };
+        for (String charsetName : charsets) {
+            SpeedometerStringLength length = SpeedometerStringLength.of(Optional.of(charsetName));
+            for (String text : TEXTS) {
+                assertLength(charsetName, length, text);
+            }
+        }
+    }
+
+    @Test
+    public void testLengthWithRandomText() {
+        Random random = new Random(1);
+        SpeedometerStringLength utf8 = SpeedometerStringLength.of(Optional.of("UTF-8"));
+        SpeedometerStringLength shiftJis = SpeedometerStringLength.of(Optional.of("Shift_JIS"));
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = new char[random.nextInt(2000)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) random.nextInt(Character.MAX_VALUE + 1);
+            }
+            String text = new String(chars);
+            assertLength("UTF-8", utf8, text);
+            assertLength("Shift_JIS", shiftJis, text);
+        }
+    }
+
+    @Test
+    public void testLengthOfConstant() {
+        assertEquals("Verify delimiter length without charset.", 2, SpeedometerStringLength.of(Optional.<String>empty()).lengthOfConstant(", "));
+        assertEquals("Verify delimiter length with UTF-8.", 3, SpeedometerStringLength.of(Optional.of("UTF-8")).lengthOfConstant("\u3001"));
+        assertEquals("Verify delimiter length with UTF-16 excludes BOM.", 2, SpeedometerStringLength.of(Optional.of("UTF-16")).lengthOfConstant(","));
+    }
+
+    private static void assertLength(String charsetName, SpeedometerStringLength length, String text) {
+        assertEquals("Verify length with " + charsetName, text.getBytes(Charset.forName(charsetName)).length, length.length(text));
+    }
+}
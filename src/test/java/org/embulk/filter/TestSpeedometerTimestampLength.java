@@ -0,0 +1,97 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Random;
+
+import org.embulk.util.timestamp.TimestampFormatter;
+import org.junit.Test;
+
+public class TestSpeedometerTimestampLength {
+    private static final String[] FORMATS = {
+        "%Y-%m-%d %H:%M:%S.%N %z",
+        "%Y-%m-%d %H:%M:%S",
+        "%Y%m%d",
+        "%c",
+        "%B %A %b %a %h",
+        "%A, %d %B %Y %::z",
+        "%e %k %l %j %p %P %u %w %y %C",
+        "%s.%L %6N %12N",
+        "%D %F %T %R %r %x %X %v",
+        "%G %g %V %U %W %% %n %t",
+        "%Z %+ %Q",
+        "%-d %_m %^B %010Y",
+    };
+
+    // These formats accept only offsets as a time zone.
+    private static final String[] PREFIXED_FORMATS = {
+        "ruby:%Y-%m-%dT%H:%M:%S.%3N%:z",
+        "ruby:%a %B %d %Y %s",
+        "java:yyyy-MM-dd HH:mm:ss",
+        "java:EEEE, MMMM d, uuuu",
+    };
+
+    private static final String[] ZONES = { "UTC", "Asia/Tokyo", "-03:30", "America/New_York", "JST" };
+    private static final String[] OFFSET_ZONES = { "Z", "+09:00", "-03:30" };
+
+    @Test
+    public void testLengthWithSeveralFormats() {
+        assertLengthWithFormats(FORMATS, ZONES);
+    }
+
+    @Test
+    public void testLengthWithPrefixedFormats() {
+        assertLengthWithFormats(PREFIXED_FORMATS, OFFSET_ZONES);
+    }
+
+    private static void assertLengthWithFormats(String[] formats, String[] zones) {
+        Random random = new Random(1);
+        for (String format : formats) {
+            for (String zone : zones) {
+                TimestampFormatter formatter = TimestampFormatter.builder(format, true).setDefaultZoneFromString(zone).build();
+                SpeedometerTimestampLength length = SpeedometerTimestampLength.of(format, zone, formatter);
+
+                assertLength(formatter, length, Instant.EPOCH);
+                assertLength(formatter, length, Instant.ofEpochSecond(-1, 123456789));
+                assertLength(formatter, length, Instant.ofEpochSecond(1700000000L, 5000));
+                assertLength(formatter, length, Instant.ofEpochSecond(-62293708800L));
+                assertLength(formatter, length, Instant.ofEpochSecond(253402300800L));
+                assertLength(formatter, length, Instant.ofEpochSecond(-99999999999L));
+                for (int i = 0; i < 1000; i++) {
+                    long epochSecond = (long) ((random.nextDouble() - 0.5) * 2 * 200000000000L);
+                    assertLength(formatter, length, Instant.ofEpochSecond(epochSecond, random.nextInt(1000000000)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConstantFormat() {
+        assertTrue("Verify default format is constant.", newLength("%Y-%m-%d %H:%M:%S.%N %z", "Asia/Tokyo").isConstant());
+        assertTrue("Verify date format is constant.", newLength("%Y%m%d", "UTC").isConstant());
+        assertFalse("Verify month name is not constant.", newLength("%B", "UTC").isConstant());
+        assertTrue("Verify month name is analyzed.", newLength("%B", "UTC").isAnalyzed());
+    }
+
+    @Test
+    public void testNotAnalyzedFormat() {
+        assertFalse("Verify zone name is not analyzed.", newLength("%Z", "UTC").isAnalyzed());
+        assertFalse("Verify flag is not analyzed.", newLength("%-d", "UTC").isAnalyzed());
+        assertFalse("Verify java format is not analyzed.", newLength("java:yyyy", "Z").isAnalyzed());
+        assertFalse("Verify zone abbreviation with name is not analyzed.", newLength("%B", "JST").isAnalyzed());
+        assertTrue("Verify zone abbreviation without name is analyzed.", newLength("%Y", "JST").isAnalyzed());
+    }
+
+    private static SpeedometerTimestampLength newLength(String format, String zone) {
+        TimestampFormatter formatter = TimestampFormatter.builder(format, true).setDefaultZoneFromString(zone).build();
+        return SpeedometerTimestampLength.of(format, zone, formatter);
+    }
+
+    private static void assertLength(TimestampFormatter formatter, SpeedometerTimestampLength length, Instant t) {
+        String text = formatter.format(t);
+        assertEquals("Verify length of " + text, text.length(), length.length(t));
+    }
+}
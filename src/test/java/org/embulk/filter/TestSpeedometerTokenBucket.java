@@ -0,0 +1,63 @@
+package org.embulk.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestSpeedometerTokenBucket {
+    private static final long SEC = 1000000000L;
+
+    @Test
+    public void testConsumeInBurst() {
+        SpeedometerTokenBucket bucket = new SpeedometerTokenBucket(100);
+        assertEquals("Verify no wait in burst size.", 0, bucket.consume(0, 60, 10));
+        assertEquals("Verify no wait in burst size.", 0, bucket.consume(0, 40, 10));
+    }
+
+    @Test
+    public void testConsumeOverBurst() {
+        SpeedometerTokenBucket bucket = new SpeedometerTokenBucket(100);
+        assertEquals("Verify wait for 10 tokens at 10/s.", SEC, bucket.consume(0, 110, 10));
+        assertEquals("Verify borrowed tokens are refilled.", 0, bucket.consume(SEC, 0, 10));
+        assertEquals("Verify wait for 5 tokens at 10/s.", SEC / 2, bucket.consume(SEC, 5, 10));
+    }
+
+    @Test
+    public void testRefillIsLimitedByBurstSize() {
+        SpeedometerTokenBucket bucket = new SpeedometerTokenBucket(100);
+        bucket.consume(0, 100, 10);
+        bucket.consume(100 * SEC, 0, 10);
+        assertEquals("Verify tokens are not over burst size.", 100.0, bucket.getTokens(), 0.0);
+    }
+
+    @Test
+    public void testRefillAfterLongIdleAtHighRate() {
+        SpeedometerTokenBucket bucket = new SpeedometerTokenBucket(0);
+        bucket.consume(0, 100000000L, 100000000L);
+        assertEquals("Verify no wait after 100 s idle at 100 MB/s.", 0, bucket.consume(100 * SEC, 100000000L, 100000000L));
+
+        bucket = new SpeedometerTokenBucket(0);
+        bucket.consume(0, 1000000000L, 1000000000L);
+        assertEquals("Verify no wait after 10 s idle at 1 GB/s.", 0, bucket.consume(10 * SEC, 1000000000L, 1000000000L));
+        assertEquals("Verify tokens are refilled up to burst size.", 0.0, bucket.getTokens(), 0.0);
+    }
+
+    @Test
+    public void testDefaultBurstSizeIsOneSecond() {
+        SpeedometerTokenBucket bucket = new SpeedometerTokenBucket(0);
+        assertEquals("Verify no wait in one second of rate.", 0, bucket.consume(0, 1000, 1000));
+        assertEquals("Verify wait for 1 ms.", SEC / 1000, bucket.consume(0, 1, 1000));
+    }
+
+    @Test
+    public void testKeepAverageRate() {
+        SpeedometerTokenBucket bucket = new SpeedometerTokenBucket(1);
+        long nowNanos = 0;
+        long totalSize = 0;
+        for (int i = 0; i < 1000; i++) {
+            nowNanos += bucket.consume(nowNanos, 37, 1000);
+            totalSize += 37;
+        }
+        assertEquals("Verify average rate is the limit.", 1000.0, totalSize * (double) SEC / nowNanos, 1000.0 * 0.01);
+    }
+}
@@ -2,6 +2,16 @@ package org.embulk.filter;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
+import org.embulk.spi.json.JsonArray;
+import org.embulk.spi.json.JsonBoolean;
+import org.embulk.spi.json.JsonDouble;
+import org.embulk.spi.json.JsonLong;
+import org.embulk.spi.json.JsonNull;
+import org.embulk.spi.json.JsonObject;
+import org.embulk.spi.json.JsonString;
+import org.embulk.spi.json.JsonValue;
 import org.junit.Test;
 
 public class TestSpeedometerUtil {
@@ -76,4 +86,82 @@ public class TestSpeedometerUtil {
             assertEquals("Verify toNumberText to " + i, String.valueOf(i).length(), SpeedometerUtil.toDigitsTextLength(i));
         }
     }
+
+    @Test
+    public void testToDoubleTextLengthForEdgeCases() {
+        double[] values = {
+            0.0, -0.0, 1.0, -1.0, 0.1, 0.1 + 0.2, 1.5, 100.0, 0.001, 0.0009999999999999998,
+            1.0E7, 9999999.999999998, 1.0E-3, 1.0E-4, 1.0E15, 1.0E16, 1.0E23, 2.82879384806159E17,
+            9007199254740993.0, 123456789012345.6, Long.MAX_VALUE, Long.MIN_VALUE,
+            Double.MIN_VALUE, Double.MAX_VALUE, Double.MIN_NORMAL,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        };
+        for (double value : values) {
+            assertDoubleTextLength(value);
+            assertDoubleTextLength(-value);
+            assertDoubleTextLength(Math.nextUp(value));
+            assertDoubleTextLength(Math.nextDown(value));
+        }
+        for (int exponent = -30; exponent <= 30; exponent++) {
+            double value = Math.pow(10, exponent);
+            assertDoubleTextLength(value);
+            assertDoubleTextLength(Math.nextUp(value));
+            assertDoubleTextLength(Math.nextDown(value));
+        }
+    }
+
+    @Test
+    public void testToDoubleTextLengthForRandomValues() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            assertDoubleTextLength(Double.longBitsToDouble(random.nextLong()));
+            assertDoubleTextLength((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(40) - 15));
+            assertDoubleTextLength((random.nextLong() % 1000000000000000L) / Math.pow(10, random.nextInt(30)));
+            assertDoubleTextLength(random.nextInt(100000) / Math.pow(10, random.nextInt(12)));
+        }
+    }
+
+    @Test
+    public void testToJsonTextLengthForScalars() {
+        assertJsonTextLength(JsonNull.NULL);
+        assertJsonTextLength(JsonBoolean.TRUE);
+        assertJsonTextLength(JsonBoolean.FALSE);
+        assertJsonTextLength(JsonLong.of(0));
+        assertJsonTextLength(JsonLong.of(-123));
+        assertJsonTextLength(JsonLong.of(Long.MIN_VALUE));
+        assertJsonTextLength(JsonDouble.of(1.5));
+        assertJsonTextLength(JsonDouble.of(-1.0E-20));
+        assertJsonTextLength(JsonString.of(""));
+        assertJsonTextLength(JsonString.of("foo bar"));
+        assertJsonTextLength(JsonString.of("\u65e5\u672c\u8a9e"));
+    }
+
+    @Test
+    public void testToJsonTextLengthForEscapedString() {
+        StringBuilder builder = new StringBuilder();
+        for (char c = 0; c < 0x100; c++) {
+            builder.append(c);
+        }
+        assertJsonTextLength(JsonString.of(builder.toString()));
+        assertJsonTextLength(JsonString.of("\"quoted\" \\ /path\r\n"));
+    }
+
+    @Test
+    public void testToJsonTextLengthForContainers() {
+        assertJsonTextLength(JsonArray.of());
+        assertJsonTextLength(JsonObject.of());
+        assertJsonTextLength(JsonArray.of(JsonLong.of(1), JsonNull.NULL, JsonString.of("a")));
+        assertJsonTextLength(JsonObject.of(
+                "a", JsonArray.of(JsonLong.of(1), JsonBoolean.FALSE),
+                "b\"", JsonObject.of("c", JsonDouble.of(0.25), "d", JsonObject.of()),
+                "", JsonString.of("\t")));
+    }
+
+    private static void assertDoubleTextLength(double value) {
+        assertEquals("Verify toDoubleTextLength to " + value, String.valueOf(value).length(), SpeedometerUtil.toDoubleTextLength(value));
+    }
+
+    private static void assertJsonTextLength(JsonValue value) {
+        assertEquals("Verify toJsonTextLength to " + value.toJson(), value.toJson().length(), SpeedometerUtil.toJsonTextLength(value));
+    }
 }